@@ -0,0 +1,960 @@
+package com.atguigu.java.collection;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件（MappedByteBuffer）的持久化哈希表，键为byte[]或long，值为byte[]
+ * <pre>
+ * 一、文件布局
+ * | 头部A(64B) | 头部B(64B) | 索引区 | 数据区 |
+ * 1. 头部：魔数、版本、序号、段数、每段槽数、数据区尾部、浪费字节数、索引区位置、CRC
+ *    两份头部轮流写入，打开时取CRC正确且序号最大的一份，写头部时崩溃不会破坏另一份
+ * 2. 索引区：按段划分的开放寻址表，槽 = [long hash][long offset][long durable][long seq]
+ *    offset为0表示空槽，为-1表示已删除；durable为该槽在上次sync()时的offset，seq为写入该槽时的头部序号；
+ *    索引扩容时在数据区尾部写一份新的索引区后切换，旧的索引区算作浪费的字节，压缩时回收
+ * 3. 数据区：只追加的记录 = [int crc][int keyLen][int valueLen][key][value]
+ *
+ * 二、并发
+ * 1. 每段一把StampedLock：写操作持有段的写锁，读操作先乐观读（tryOptimisticRead），读完后validate()，
+ *    期间有写操作时改为持有读锁重读；乐观读可能读到不一致的数据，所以先检查记录的边界，验证通过后才分配值的数组
+ * 2. 一个键只会在自己所在的段内探测，不同段的写操作互不影响
+ * 3. 索引扩容与压缩持有全局写锁：扩容不修改旧的索引区，读线程仍可使用旧的索引区；
+ *    压缩重写到临时文件后原子替换，读线程仍可访问旧映射；替换失败时（Windows下被映射的文件不能被替换），
+ *    持有所有段的写锁把临时文件复制回原文件，先复制头部以外的部分，最后复制头部
+ *
+ * 三、重启：只需重新映射文件，从头部记录的尾部向后校验记录，找回崩溃前未同步到头部的数据；
+ * 索引槽先于记录落盘时（槽指向校验失败的记录），把槽回退到durable，即上次sync()时的记录；
+ * 存在完整的临时文件而原文件头部的序号更小时，说明复制回原文件时崩溃了，重新复制
+ *
+ * 说明：整个文件通过一个MappedByteBuffer映射，大小上限为2GB
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-12 14:20
+ */
+public class MappedHashMap implements Closeable {
+
+    private static final int MAGIC = 0x4D484D31; // "MHM1"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 64;
+    private static final int INDEX_OFFSET = HEADER_SIZE * 2;
+    private static final int SLOT_SIZE = 32; // 2的幂，索引区按槽大小对齐，槽不会跨越页
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    private static final long EMPTY = 0L;
+    private static final long DELETED = -1L;
+
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int DEFAULT_SLOTS_PER_SEGMENT = 1024;
+    private static final int INITIAL_DATA_SIZE = 1024 * 1024;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    // 乐观读读到不一致的数据
+    private static final byte[] INVALID = new byte[0];
+
+    private final Path path;
+    private final int segments;
+    private final StampedLock[] stripes;
+    // 写操作持有读锁，压缩与扩容持有写锁
+    private final ReentrantReadWriteLock globalLock = new ReentrantReadWriteLock();
+    private final Object allocLock = new Object();
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private volatile Mapping mapping;
+
+    // 以下字段由allocLock或分段锁保护
+    private long tail;
+    private long headerSeq;
+    private int[] used; // 每段非空槽（含已删除）的数量
+    private int[] live; // 每段有效键的数量
+    private long wasted;
+
+    /**
+     * 一次映射的快照，扩容数据区时替换buffer，扩容索引与压缩时替换整个快照
+     */
+    private static final class Mapping {
+        final MappedByteBuffer buffer;
+        final int slotsPerSegment;
+        final int indexOffset;
+
+        Mapping(MappedByteBuffer buffer, int slotsPerSegment, int indexOffset) {
+            this.buffer = buffer;
+            this.slotsPerSegment = slotsPerSegment;
+            this.indexOffset = indexOffset;
+        }
+
+        Mapping withBuffer(MappedByteBuffer buffer) {
+            return new Mapping(buffer, slotsPerSegment, indexOffset);
+        }
+
+        int slotPosition(int segment, int slot) {
+            return slotPosition(indexOffset, slotsPerSegment, segment, slot);
+        }
+
+        static int slotPosition(int indexOffset, int slotsPerSegment, int segment, int slot) {
+            return indexOffset + (segment * slotsPerSegment + slot) * SLOT_SIZE;
+        }
+    }
+
+    public MappedHashMap(String path) throws IOException {
+        this(Paths.get(path), DEFAULT_SEGMENTS, DEFAULT_SLOTS_PER_SEGMENT);
+    }
+
+    /**
+     * @param path            文件路径，文件已存在时忽略后两个参数，使用文件头部中的配置
+     * @param segments        段数（即写锁的数量），必须是2的幂
+     * @param slotsPerSegment 每段初始槽数，必须是2的幂
+     */
+    public MappedHashMap(Path path, int segments, int slotsPerSegment) throws IOException {
+        if (Integer.bitCount(segments) != 1 || Integer.bitCount(slotsPerSegment) != 1) {
+            throw new IllegalArgumentException("segments和slotsPerSegment必须是2的幂");
+        }
+        this.path = path;
+        this.raf = new RandomAccessFile(path.toFile(), "rw");
+        this.channel = raf.getChannel();
+        if (channel.size() == 0) {
+            create(segments, slotsPerSegment);
+        } else {
+            load();
+        }
+        this.segments = this.used.length;
+        this.stripes = new StampedLock[this.segments];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new StampedLock();
+        }
+    }
+
+    /**
+     * long键按8字节大端序存储，与get(byte[])等方法互通，但不为键分配数组
+     */
+    public byte[] get(long key) {
+        return get(null, key);
+    }
+
+    public byte[] put(long key, byte[] value) throws IOException {
+        return put(null, key, value);
+    }
+
+    public byte[] remove(long key) throws IOException {
+        return remove(null, key);
+    }
+
+    /**
+     * 无锁读取（乐观读），读取期间同一段有写操作时持有段的读锁重读
+     *
+     * @return 键对应的值，不存在时返回null
+     */
+    public byte[] get(byte[] key) {
+        checkKey(key);
+        return get(key, 0);
+    }
+
+    // key为null时使用longKey
+    private byte[] get(byte[] key, long longKey) {
+        long hash = key != null ? hash(key) : hash(longKey);
+        int segment = segmentOf(hash);
+        StampedLock lock = stripes[segment];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            byte[] value = lookup(segment, hash, key, longKey, lock, stamp);
+            // validate()通过说明读取期间没有写操作，读到的槽、记录与值都是一致的
+            if (value != INVALID && lock.validate(stamp)) {
+                return value;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return lookup(segment, hash, key, longKey, null, 0);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 在段内探测；lock不为null时是乐观读，读到越界的记录或验证失败时返回INVALID
+     */
+    private byte[] lookup(int segment, long hash, byte[] key, long longKey, StampedLock lock, long stamp) {
+        Mapping m = mapping;
+        ByteBuffer buffer = m.buffer;
+        int mask = m.slotsPerSegment - 1;
+        int start = slotOf(hash, mask);
+        for (int i = 0; i <= mask; i++) {
+            int pos = m.slotPosition(segment, (start + i) & mask);
+            long offset = buffer.getLong(pos + 8);
+            if (offset == EMPTY) {
+                return null;
+            }
+            if (offset == DELETED || buffer.getLong(pos) != hash) {
+                continue;
+            }
+            if (offset < 0 || offset + RECORD_HEADER_SIZE > buffer.capacity()) {
+                if (lock != null) {
+                    return INVALID;
+                }
+                continue;
+            }
+            int keyLength = buffer.getInt((int) offset + 4);
+            int valueLength = buffer.getInt((int) offset + 8);
+            if (keyLength <= 0 || valueLength < 0
+                    || offset + RECORD_HEADER_SIZE + (long) keyLength + valueLength > buffer.capacity()) {
+                if (lock != null) {
+                    return INVALID;
+                }
+                continue;
+            }
+            if (keyEquals(buffer, (int) offset, keyLength, key, longKey)) {
+                // 先确认长度是一致的，再按长度分配数组
+                if (lock != null && !lock.validate(stamp)) {
+                    return INVALID;
+                }
+                return readValue(buffer, (int) offset, keyLength, valueLength);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 旧值，不存在时返回null
+     */
+    public byte[] put(byte[] key, byte[] value) throws IOException {
+        checkKey(key);
+        return put(key, 0, value);
+    }
+
+    private byte[] put(byte[] key, long longKey, byte[] value) throws IOException {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        long hash = key != null ? hash(key) : hash(longKey);
+        int segment = segmentOf(hash);
+        while (true) {
+            globalLock.readLock().lock();
+            try {
+                StampedLock lock = stripes[segment];
+                long stamp = lock.writeLock();
+                try {
+                    Mapping m = mapping;
+                    int slot = findSlot(m, segment, hash, key, longKey);
+                    int pos = m.slotPosition(segment, slot < 0 ? -slot - 1 : slot);
+                    long oldOffset = m.buffer.getLong(pos + 8);
+                    boolean full = slot < 0 && oldOffset == EMPTY
+                            && used[segment] + 1 > m.slotsPerSegment * LOAD_FACTOR;
+                    if (!full) {
+                        long offset = append(key, longKey, value);
+                        m = mapping;
+                        byte[] old = null;
+                        if (slot >= 0) {
+                            old = readValue(m.buffer, (int) oldOffset);
+                            addWasted(recordLength(m.buffer, (int) oldOffset));
+                        } else {
+                            if (oldOffset == EMPTY) {
+                                used[segment]++;
+                            }
+                            live[segment]++;
+                        }
+                        writeSlot(m.buffer, pos, hash, offset);
+                        return old;
+                    }
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            } finally {
+                globalLock.readLock().unlock();
+            }
+            // 段的装载因子超限，释放锁后重建索引（清理已删除的槽，必要时扩容），然后重试
+            growIndex(segment);
+        }
+    }
+
+    /**
+     * @return 被删除的值，不存在时返回null
+     */
+    public byte[] remove(byte[] key) throws IOException {
+        checkKey(key);
+        return remove(key, 0);
+    }
+
+    private byte[] remove(byte[] key, long longKey) throws IOException {
+        globalLock.readLock().lock();
+        try {
+            long hash = key != null ? hash(key) : hash(longKey);
+            int segment = segmentOf(hash);
+            StampedLock lock = stripes[segment];
+            long stamp = lock.writeLock();
+            try {
+                Mapping m = mapping;
+                int slot = findSlot(m, segment, hash, key, longKey);
+                if (slot < 0) {
+                    return null;
+                }
+                int pos = m.slotPosition(segment, slot);
+                int offset = (int) m.buffer.getLong(pos + 8);
+                byte[] old = readValue(m.buffer, offset);
+                writeSlot(m.buffer, pos, hash, DELETED);
+                live[segment]--;
+                addWasted(recordLength(m.buffer, offset));
+                return old;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } finally {
+            globalLock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(byte[] key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return 有效键的数量，存在并发写入时是近似值
+     */
+    public int size() {
+        int size = 0;
+        for (int n : live) {
+            size += n;
+        }
+        return size;
+    }
+
+    /**
+     * @return 数据区中已被覆盖或删除的记录（以及扩容前的索引区）所占的字节数，可据此决定何时compact()
+     */
+    public long wastedBytes() {
+        synchronized (allocLock) {
+            return wasted;
+        }
+    }
+
+    /**
+     * 将数据与索引刷到磁盘，然后更新头部
+     */
+    public void sync() throws IOException {
+        globalLock.writeLock().lock();
+        try {
+            mapping.buffer.force();
+            writeHeader(mapping);
+            mapping.buffer.force();
+        } finally {
+            globalLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 在线压缩：只保留有效记录，重写到临时文件后原子替换，期间读操作不受影响；
+     * 不能替换时把临时文件复制回原文件，复制期间读操作等待
+     */
+    public void compact() throws IOException {
+        globalLock.writeLock().lock();
+        try {
+            Mapping old = mapping;
+            int slotsPerSegment = slotsFor(old.slotsPerSegment);
+            long liveBytes = 0;
+            for (int segment = 0; segment < segments; segment++) {
+                for (int i = 0; i < old.slotsPerSegment; i++) {
+                    long offset = old.buffer.getLong(old.slotPosition(segment, i) + 8);
+                    if (offset != EMPTY && offset != DELETED) {
+                        liveBytes += recordLength(old.buffer, (int) offset);
+                    }
+                }
+            }
+            int dataOffset = (int) checkSize(INDEX_OFFSET + (long) segments * slotsPerSegment * SLOT_SIZE);
+            long size = checkSize(dataOffset + liveBytes + INITIAL_DATA_SIZE);
+
+            // 1. 写临时文件（不映射，Windows下才能删除）：先写记录并落盘，再写头部与索引区并落盘，头部有效即文件完整
+            Path tmp = compactPath();
+            ByteBuffer head = ByteBuffer.allocate(dataOffset);
+            int[] newUsed = new int[segments];
+            long newTail = dataOffset;
+            int mask = slotsPerSegment - 1;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+                out.position(dataOffset);
+                for (int segment = 0; segment < segments; segment++) {
+                    for (int i = 0; i < old.slotsPerSegment; i++) {
+                        int pos = old.slotPosition(segment, i);
+                        long offset = old.buffer.getLong(pos + 8);
+                        if (offset == EMPTY || offset == DELETED) {
+                            continue;
+                        }
+                        long hash = old.buffer.getLong(pos);
+                        int length = recordLength(old.buffer, (int) offset);
+                        ByteBuffer record = old.buffer.duplicate();
+                        record.position((int) offset).limit((int) offset + length);
+                        if (record.remaining() > chunk.remaining()) {
+                            chunk.flip();
+                            writeFully(out, chunk);
+                            chunk.clear();
+                        }
+                        if (record.remaining() > chunk.remaining()) {
+                            writeFully(out, record);
+                        } else {
+                            chunk.put(record);
+                        }
+                        int slot = slotOf(hash, mask);
+                        while (head.getLong(Mapping.slotPosition(INDEX_OFFSET, slotsPerSegment, segment, slot) + 8)
+                                != EMPTY) {
+                            slot = (slot + 1) & mask;
+                        }
+                        int newPos = Mapping.slotPosition(INDEX_OFFSET, slotsPerSegment, segment, slot);
+                        // 新文件在替换前已经落盘，durable就是记录本身
+                        head.putLong(newPos, hash);
+                        head.putLong(newPos + 8, newTail);
+                        head.putLong(newPos + 16, newTail);
+                        newTail += length;
+                        newUsed[segment]++;
+                    }
+                }
+                chunk.flip();
+                writeFully(out, chunk);
+                out.write(ByteBuffer.allocate(1), size - 1);
+                out.force(true);
+
+                tail = newTail;
+                wasted = 0;
+                used = newUsed;
+                writeHeader(head, slotsPerSegment, INDEX_OFFSET);
+                head.clear();
+                out.position(0);
+                writeFully(out, head);
+                out.force(true);
+            }
+
+            // 2. 原子替换旧文件，旧映射在被回收前仍然可读
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // Windows下被映射的文件不能被替换：持有所有段的写锁（读操作等待），把临时文件复制回原文件
+                long[] stamps = lockStripes();
+                try {
+                    mapping = new Mapping(copyBack(tmp), slotsPerSegment, INDEX_OFFSET);
+                } finally {
+                    unlockStripes(stamps);
+                }
+                Files.delete(tmp);
+                return;
+            }
+            RandomAccessFile newRaf = new RandomAccessFile(path.toFile(), "rw");
+            channel.close();
+            raf.close();
+            raf = newRaf;
+            channel = newRaf.getChannel();
+            mapping = new Mapping(channel.map(FileChannel.MapMode.READ_WRITE, 0, size), slotsPerSegment, INDEX_OFFSET);
+        } finally {
+            globalLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        globalLock.writeLock().lock();
+        try {
+            if (!channel.isOpen()) {
+                return;
+            }
+            mapping.buffer.force();
+            writeHeader(mapping);
+            mapping.buffer.force();
+            channel.close();
+            raf.close();
+        } finally {
+            globalLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 重建索引：在数据区尾部写一份新的索引区（去掉已删除的槽，必要时槽数加倍），然后切换过去；
+     * 旧的索引区不被修改，读线程可以继续使用，也不需要替换被映射的文件
+     */
+    private void growIndex(int segment) throws IOException {
+        globalLock.writeLock().lock();
+        try {
+            Mapping old = mapping;
+            if (used[segment] + 1 <= old.slotsPerSegment * LOAD_FACTOR) {
+                // 其他线程已经重建过
+                return;
+            }
+            int slotsPerSegment = slotsFor(old.slotsPerSegment);
+            long indexSize = (long) segments * slotsPerSegment * SLOT_SIZE;
+            long indexOffset;
+            synchronized (allocLock) {
+                indexOffset = (tail + SLOT_SIZE - 1) & -SLOT_SIZE;
+                long end = checkSize(indexOffset + indexSize);
+                if (end > mapping.buffer.capacity()) {
+                    grow(end);
+                }
+                wasted += indexOffset - tail + (long) segments * old.slotsPerSegment * SLOT_SIZE;
+                tail = end;
+            }
+            MappedByteBuffer buffer = mapping.buffer;
+            Mapping m = new Mapping(buffer, slotsPerSegment, (int) indexOffset);
+            // 尾部之后可能残留着压缩前的数据
+            zero(buffer, (int) indexOffset, (int) (indexOffset + indexSize));
+            int[] newUsed = new int[segments];
+            int mask = slotsPerSegment - 1;
+            for (int s = 0; s < segments; s++) {
+                for (int i = 0; i < old.slotsPerSegment; i++) {
+                    int pos = old.slotPosition(s, i);
+                    long offset = old.buffer.getLong(pos + 8);
+                    if (offset == EMPTY || offset == DELETED) {
+                        continue;
+                    }
+                    long hash = old.buffer.getLong(pos);
+                    int slot = slotOf(hash, mask);
+                    while (buffer.getLong(m.slotPosition(s, slot) + 8) != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    int newPos = m.slotPosition(s, slot);
+                    // 写头部前整个文件会落盘，durable就是当前的记录
+                    buffer.putLong(newPos, hash);
+                    buffer.putLong(newPos + 8, offset);
+                    buffer.putLong(newPos + 16, offset);
+                    newUsed[s]++;
+                }
+            }
+            used = newUsed;
+            // 先落盘新的索引区再写头部；写头部之前崩溃时，打开后仍使用旧的索引区
+            buffer.force();
+            mapping = m;
+            writeHeader(m);
+            buffer.force();
+        } finally {
+            globalLock.writeLock().unlock();
+        }
+    }
+
+    // 装下最多的一段有效键所需的每段槽数
+    private int slotsFor(int slotsPerSegment) {
+        while (maxLive() + 1 > slotsPerSegment * LOAD_FACTOR) {
+            slotsPerSegment *= 2;
+        }
+        return slotsPerSegment;
+    }
+
+    private long[] lockStripes() {
+        long[] stamps = new long[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            stamps[i] = stripes[i].writeLock();
+        }
+        return stamps;
+    }
+
+    private void unlockStripes(long[] stamps) {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i].unlockWrite(stamps[i]);
+        }
+    }
+
+    // ---------------------------------------------------------------- 文件格式
+
+    private void create(int segments, int slotsPerSegment) throws IOException {
+        long size = checkSize(INDEX_OFFSET + (long) segments * slotsPerSegment * SLOT_SIZE + INITIAL_DATA_SIZE);
+        raf.setLength(size);
+        Mapping m = new Mapping(channel.map(FileChannel.MapMode.READ_WRITE, 0, size), slotsPerSegment, INDEX_OFFSET);
+        used = new int[segments];
+        live = new int[segments];
+        tail = m.slotPosition(segments, 0);
+        headerSeq = 0;
+        mapping = m;
+        writeHeader(m);
+        m.buffer.force();
+    }
+
+    private void load() throws IOException {
+        // 上次压缩时复制回原文件的过程被中断，重新复制
+        Path tmp = compactPath();
+        if (Files.exists(tmp)) {
+            if (needsCopyBack(tmp)) {
+                copyBack(tmp);
+            }
+            Files.delete(tmp);
+        }
+
+        long size = checkSize(channel.size());
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        int header = latestHeader(buffer);
+        if (header < 0) {
+            throw new IOException("文件头部损坏或不是MappedHashMap文件：" + path);
+        }
+        if (buffer.getInt(header + 4) != VERSION) {
+            throw new IOException("不支持的版本：" + buffer.getInt(header + 4));
+        }
+        int segments = buffer.getInt(header + 16);
+        Mapping m = new Mapping(buffer, buffer.getInt(header + 20), buffer.getInt(header + 40));
+        headerSeq = buffer.getLong(header + 8);
+        wasted = buffer.getLong(header + 32);
+
+        // 从头部记录的尾部向后找回已完整写入的记录
+        long t = buffer.getLong(header + 24);
+        while (t + RECORD_HEADER_SIZE <= size) {
+            int keyLength = buffer.getInt((int) t + 4);
+            int valueLength = buffer.getInt((int) t + 8);
+            if (keyLength <= 0 || valueLength < 0 || t + RECORD_HEADER_SIZE + keyLength + valueLength > size
+                    || buffer.getInt((int) t) != recordCrc(buffer, (int) t)) {
+                break;
+            }
+            t += RECORD_HEADER_SIZE + keyLength + valueLength;
+        }
+        tail = t;
+
+        // 槽指向未完整写入的记录时（槽所在的页先落盘了），回退到上次sync()时的内容，并统计各段的使用情况
+        used = new int[segments];
+        live = new int[segments];
+        boolean recovered = false;
+        for (int segment = 0; segment < segments; segment++) {
+            for (int i = 0; i < m.slotsPerSegment; i++) {
+                int pos = m.slotPosition(segment, i);
+                long offset = buffer.getLong(pos + 8);
+                if (offset == EMPTY) {
+                    continue;
+                }
+                if (offset != DELETED && offset >= tail) {
+                    long durable = buffer.getLong(pos + 16);
+                    offset = durable > 0 && durable < tail ? durable : DELETED;
+                    if (offset != DELETED) {
+                        // 槽可能已被别的键复用，按记录中的键恢复哈希
+                        buffer.putLong(pos, recordHash(buffer, (int) offset));
+                    }
+                    buffer.putLong(pos + 8, offset);
+                    recovered = true;
+                }
+                used[segment]++;
+                if (offset != DELETED) {
+                    live[segment]++;
+                }
+            }
+        }
+        mapping = m;
+        // 写一次头部（序号加1），此后恢复后的槽都被视为已落盘
+        if (recovered) {
+            buffer.force();
+        }
+        writeHeader(m);
+        buffer.force();
+    }
+
+    /**
+     * @return CRC正确且序号最大的头部的位置，都不正确时返回-1
+     */
+    private static int latestHeader(ByteBuffer buffer) {
+        int header = -1;
+        long seq = -1;
+        for (int i = 0; i < 2; i++) {
+            int base = i * HEADER_SIZE;
+            if (buffer.getInt(base) == MAGIC && buffer.getInt(base + 44) == headerCrc(buffer, base)
+                    && buffer.getLong(base + 8) > seq) {
+                header = base;
+                seq = buffer.getLong(base + 8);
+            }
+        }
+        return header;
+    }
+
+    // 临时文件是完整的（头部有效），而原文件的头部序号更小：复制回原文件时崩溃了，或者替换前崩溃了
+    private boolean needsCopyBack(Path tmp) throws IOException {
+        ByteBuffer tmpHead = ByteBuffer.allocate(INDEX_OFFSET);
+        ByteBuffer head = ByteBuffer.allocate(INDEX_OFFSET);
+        try (FileChannel in = FileChannel.open(tmp, StandardOpenOption.READ)) {
+            if (in.size() < INDEX_OFFSET) {
+                return false;
+            }
+            readFully(in, tmpHead, 0);
+        }
+        int tmpHeader = latestHeader(tmpHead);
+        if (tmpHeader < 0) {
+            return false;
+        }
+        if (channel.size() < INDEX_OFFSET) {
+            return true;
+        }
+        readFully(channel, head, 0);
+        int header = latestHeader(head);
+        return header < 0 || head.getLong(header + 8) < tmpHead.getLong(tmpHeader + 8);
+    }
+
+    /**
+     * 把完整的临时文件复制到原文件：先复制头部以外的部分并落盘，最后复制头部，
+     * 头部的序号不小于临时文件即复制完成；原文件更大时，多出的部分清零，崩溃恢复时不会被当作记录
+     */
+    private MappedByteBuffer copyBack(Path tmp) throws IOException {
+        try (FileChannel in = FileChannel.open(tmp, StandardOpenOption.READ)) {
+            long size = checkSize(in.size());
+            long capacity = Math.max(size, channel.size());
+            if (channel.size() < size) {
+                raf.setLength(size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            ByteBuffer dst = buffer.duplicate();
+            dst.position(INDEX_OFFSET).limit((int) size);
+            readFully(in, dst, INDEX_OFFSET);
+            zero(buffer, (int) size, (int) capacity);
+            buffer.force();
+            dst.clear().limit(INDEX_OFFSET);
+            readFully(in, dst, 0);
+            buffer.force();
+            return buffer;
+        }
+    }
+
+    private Path compactPath() {
+        return path.resolveSibling(path.getFileName() + ".compact");
+    }
+
+    /**
+     * 写槽：本次sync()之后第一次修改该槽时，先把原来的offset（已落盘）保存到durable
+     */
+    private void writeSlot(MappedByteBuffer buffer, int pos, long hash, long offset) {
+        if (buffer.getLong(pos + 24) != headerSeq) {
+            buffer.putLong(pos + 16, buffer.getLong(pos + 8));
+            buffer.putLong(pos + 24, headerSeq);
+        }
+        buffer.putLong(pos, hash);
+        buffer.putLong(pos + 8, offset);
+    }
+
+    private void writeHeader(Mapping m) {
+        writeHeader(m.buffer, m.slotsPerSegment, m.indexOffset);
+    }
+
+    /**
+     * 头部：magic(0) version(4) seq(8) segments(16) slotsPerSegment(20) tail(24) wasted(32) indexOffset(40) crc(44)
+     */
+    private void writeHeader(ByteBuffer buffer, int slotsPerSegment, int indexOffset) {
+        long seq = ++headerSeq;
+        int base = (int) (seq & 1) * HEADER_SIZE;
+        buffer.putInt(base, MAGIC);
+        buffer.putInt(base + 4, VERSION);
+        buffer.putLong(base + 8, seq);
+        buffer.putInt(base + 16, used.length);
+        buffer.putInt(base + 20, slotsPerSegment);
+        buffer.putLong(base + 24, tail);
+        buffer.putLong(base + 32, wasted);
+        buffer.putInt(base + 40, indexOffset);
+        buffer.putInt(base + 44, headerCrc(buffer, base));
+    }
+
+    private static int headerCrc(ByteBuffer buffer, int base) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 44; i++) {
+            crc.update(buffer.get(base + i));
+        }
+        return (int) crc.getValue();
+    }
+
+    private long append(byte[] key, long longKey, byte[] value) throws IOException {
+        int keyLength = key != null ? key.length : 8;
+        int length = RECORD_HEADER_SIZE + keyLength + value.length;
+        long offset;
+        synchronized (allocLock) {
+            offset = tail;
+            if (offset + length > mapping.buffer.capacity()) {
+                grow(offset + length);
+            }
+            tail = offset + length;
+        }
+        ByteBuffer buffer = mapping.buffer.duplicate();
+        buffer.position((int) offset + 4);
+        buffer.putInt(keyLength);
+        buffer.putInt(value.length);
+        if (key != null) {
+            buffer.put(key);
+        } else {
+            buffer.putLong(longKey);
+        }
+        buffer.put(value);
+        buffer.putInt((int) offset, recordCrc(buffer, (int) offset));
+        return offset;
+    }
+
+    private void grow(long needed) throws IOException {
+        Mapping m = mapping;
+        long size = checkSize(Math.max(needed, Math.min((long) m.buffer.capacity() * 2, Integer.MAX_VALUE)));
+        raf.setLength(size);
+        mapping = m.withBuffer(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    private void addWasted(int length) {
+        synchronized (allocLock) {
+            wasted += length;
+        }
+    }
+
+    /**
+     * @return 找到键时返回槽号；否则返回 -(可插入的槽号) - 1
+     */
+    private int findSlot(Mapping m, int segment, long hash, byte[] key, long longKey) {
+        int mask = m.slotsPerSegment - 1;
+        int start = slotOf(hash, mask);
+        int firstDeleted = -1;
+        for (int i = 0; i <= mask; i++) {
+            int slot = (start + i) & mask;
+            int pos = m.slotPosition(segment, slot);
+            long offset = m.buffer.getLong(pos + 8);
+            if (offset == EMPTY) {
+                return -(firstDeleted >= 0 ? firstDeleted : slot) - 1;
+            }
+            if (offset == DELETED) {
+                if (firstDeleted < 0) {
+                    firstDeleted = slot;
+                }
+            } else if (m.buffer.getLong(pos) == hash
+                    && keyEquals(m.buffer, (int) offset, m.buffer.getInt((int) offset + 4), key, longKey)) {
+                return slot;
+            }
+        }
+        return -firstDeleted - 1;
+    }
+
+    private int maxLive() {
+        int max = 0;
+        for (int n : live) {
+            max = Math.max(max, n);
+        }
+        return max;
+    }
+
+    private static boolean keyEquals(ByteBuffer buffer, int offset, int keyLength, byte[] key, long longKey) {
+        int base = offset + RECORD_HEADER_SIZE;
+        if (key == null) {
+            return keyLength == 8 && buffer.getLong(base) == longKey;
+        }
+        if (keyLength != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(base + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readValue(ByteBuffer buffer, int offset) {
+        return readValue(buffer, offset, buffer.getInt(offset + 4), buffer.getInt(offset + 8));
+    }
+
+    private static byte[] readValue(ByteBuffer buffer, int offset, int keyLength, int valueLength) {
+        byte[] value = new byte[valueLength];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset + RECORD_HEADER_SIZE + keyLength);
+        dup.get(value);
+        return value;
+    }
+
+    private static int recordLength(ByteBuffer buffer, int offset) {
+        return RECORD_HEADER_SIZE + buffer.getInt(offset + 4) + buffer.getInt(offset + 8);
+    }
+
+    private static void zero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i < to && (i & 7) != 0; i++) {
+            buffer.put(i, (byte) 0);
+        }
+        for (; i + 8 <= to; i += 8) {
+            buffer.putLong(i, 0L);
+        }
+        for (; i < to; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // 从position开始读满buffer的剩余部分
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new EOFException("文件被截断");
+            }
+        }
+    }
+
+    private static int recordCrc(ByteBuffer buffer, int offset) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset + 4).limit(offset + RECORD_HEADER_SIZE + dup.getInt(offset + 4) + dup.getInt(offset + 8));
+        CRC32 crc = new CRC32();
+        crc.update(dup);
+        return (int) crc.getValue();
+    }
+
+    private static long checkSize(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("文件大小超过单个MappedByteBuffer的映射上限（2GB）：" + size);
+        }
+        return size;
+    }
+
+    private static void checkKey(byte[] key) {
+        if (key == null || key.length == 0) {
+            throw new IllegalArgumentException("key不能为空");
+        }
+    }
+
+    private int segmentOf(long hash) {
+        return (int) hash & (used.length - 1);
+    }
+
+    private static int slotOf(long hash, int mask) {
+        return (int) (hash >>> 32) & mask;
+    }
+
+    // FNV-1a + murmur3 fmix64
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return fmix(h);
+    }
+
+    // 与hash(byte[])对8字节大端序的结果相同
+    private static long hash(long key) {
+        long h = 0xcbf29ce484222325L;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            h ^= (key >>> shift) & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return fmix(h);
+    }
+
+    private static long recordHash(ByteBuffer buffer, int offset) {
+        long h = 0xcbf29ce484222325L;
+        int base = offset + RECORD_HEADER_SIZE;
+        for (int i = 0, n = buffer.getInt(offset + 4); i < n; i++) {
+            h ^= buffer.get(base + i) & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return fmix(h);
+    }
+
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53e87e5L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,51 @@
+package com.atguigu.java.collection;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * @author xiaohua
+ * @create 2021-05-12 16:40
+ */
+public class MappedHashMapTest {
+
+    // 持久化哈希表：增删改查、关闭后重新打开、压缩
+    @Test
+    public void testMappedHashMap() throws IOException {
+        long start = System.currentTimeMillis();
+
+        MappedHashMap map = new MappedHashMap("map.dat");
+        try {
+            map.put("hello".getBytes(), "world".getBytes());
+            for (long i = 0; i < 100000; i++) {
+                map.put(i, ("value" + i).getBytes());
+            }
+            // 覆盖与删除都会在数据区留下无效记录
+            map.put(1L, "new value".getBytes());
+            map.remove(2L);
+            System.out.println(new String(map.get("hello".getBytes())));
+            System.out.println(new String(map.get(1L)));
+            System.out.println(map.get(2L)); // null
+        } finally {
+            map.close();
+        }
+
+        // 重新打开：只需映射文件，不需要重建索引
+        map = new MappedHashMap("map.dat");
+        try {
+            System.out.println(map.size());
+            System.out.println(new String(map.get(99999L)));
+
+            System.out.println("压缩前无效字节数：" + map.wastedBytes());
+            map.compact();
+            System.out.println("压缩后无效字节数：" + map.wastedBytes());
+            System.out.println(new String(map.get(1L)));
+        } finally {
+            map.close();
+        }
+
+        long end = System.currentTimeMillis();
+        System.out.println("耗费时间为：" + (end - start));
+    }
+}
@@ -89,6 +89,34 @@ public class BufferedStreamTest {
         }
     }
 
+    // 使用WriteBehindOutputStream实现非文本文件的复制：写出由后台线程完成，flush()不会阻塞
+    @Test
+    public void testWriteBehindStream() throws IOException {
+        BufferedInputStream bis = null;
+        WriteBehindOutputStream wbos = null;
+        try {
+            bis = new BufferedInputStream(new FileInputStream(new File("hello.jfif")));
+            // 缓冲区1MB，达到64KB或停留超过100毫秒时交给后台线程写出
+            wbos = new WriteBehindOutputStream(new FileOutputStream(new File("hello3.jfif")),
+                    1024 * 1024, 64 * 1024, 100);
+
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = bis.read(buf)) != -1) {
+                wbos.write(buf, 0, len);
+                wbos.flush(); // 只是交给后台线程，不等待写完
+            }
+        } finally {
+            // 关闭时写出剩余的数据，后台写出的异常在这里抛出
+            if (wbos != null) {
+                wbos.close();
+            }
+            if (bis != null) {
+                bis.close();
+            }
+        }
+    }
+
     // 实现文件复制的方法
     public void copyFileWithBuffered(String srcPath, String destPath) {
         FileInputStream fis = null;
@@ -190,4 +218,17 @@ public class BufferedStreamTest {
             }
         }
     }
+
+    // 使用ExternalSorter对大于内存的文本文件按行排序
+    @Test
+    public void testExternalSort() throws IOException {
+        long start = System.currentTimeMillis();
+        new ExternalSorter()
+                .memoryBudget(64 * 1024 * 1024) // 内存预算
+                .fanIn(32) // 一次归并的run数
+                .comparator(ExternalSorter.byField((byte) ',', 0, ExternalSorter.LEXICOGRAPHIC)) // 按第一个字段排序
+                .sort("a.java", "a_sorted.java");
+        long end = System.currentTimeMillis();
+        System.out.println("排序耗时：" + (end - start));
+    }
 }
@@ -0,0 +1,553 @@
+package com.atguigu.java.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 外部归并排序：对大于内存的文本文件按行排序
+ * <pre>
+ * 一、切分阶段
+ * 1. 通过FileChannel按块读入文件，块尾不完整的行留给下一块
+ * 2. 每块交给线程池排序：只记录每行的(偏移, 长度)，直接比较byte[]中的字节，不创建String
+ * 3. 排好序的块（run）通过FileChannel写入临时文件
+ * 4. 每个线程的内存 = 内存预算 / 并行度，包括块本身、行索引（每行16字节）与写缓冲区；
+ *    块的大小按平均行长估算，行比估算的短时在行数达到上限处提前切分
+ *
+ * 二、归并阶段
+ * 1. 每个run一个读缓冲区，用堆（PriorityQueue）做k路归并，大块顺序读
+ * 2. run的数量超过fanIn时先分组归并，直到不超过fanIn再归并到输出文件
+ *
+ * 说明：行以'\n'分隔，输出的每一行都以'\n'结尾
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-12 16:05
+ */
+public class ExternalSorter {
+
+    /**
+     * 比较两个字节片段
+     */
+    public interface LineComparator {
+        int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength);
+    }
+
+    /**
+     * 按无符号字节的字典序比较，对于UTF-8文本等价于按码点比较
+     */
+    public static final LineComparator LEXICOGRAPHIC = new LineComparator() {
+        @Override
+        public int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+            int n = Math.min(aLength, bLength);
+            for (int i = 0; i < n; i++) {
+                int c = (a[aOffset + i] & 0xff) - (b[bOffset + i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return aLength - bLength;
+        }
+    };
+
+    /**
+     * 按分隔符切分后的第index个字段比较（从0开始），字段相同时再比较整行
+     */
+    public static LineComparator byField(final byte separator, final int index, final LineComparator fieldComparator) {
+        return new LineComparator() {
+            @Override
+            public int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+                long fa = field(a, aOffset, aLength);
+                long fb = field(b, bOffset, bLength);
+                int c = fieldComparator.compare(a, (int) (fa >>> 32), (int) fa, b, (int) (fb >>> 32), (int) fb);
+                return c != 0 ? c : LEXICOGRAPHIC.compare(a, aOffset, aLength, b, bOffset, bLength);
+            }
+
+            // 返回 (字段偏移 << 32) | 字段长度，字段不存在时长度为0
+            private long field(byte[] data, int offset, int length) {
+                int end = offset + length;
+                int start = offset;
+                for (int i = 0; i < index; i++) {
+                    while (start < end && data[start] != separator) {
+                        start++;
+                    }
+                    if (start == end) {
+                        return (long) end << 32;
+                    }
+                    start++;
+                }
+                int stop = start;
+                while (stop < end && data[stop] != separator) {
+                    stop++;
+                }
+                return (long) start << 32 | (stop - start);
+            }
+        };
+    }
+
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_WRITE_BUFFER_SIZE = 4 * 1024;
+    // 排序时每行占用的内存：行索引long[]与归并排序的辅助数组各8字节
+    private static final int LINE_INDEX_BYTES = 16;
+
+    private long memoryBudget = 256L * 1024 * 1024;
+    private int fanIn = 64;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private LineComparator comparator = LEXICOGRAPHIC;
+    private Path tempDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private ExecutorService executor;
+
+    /**
+     * @param memoryBudget 排序与归并时缓冲区可使用的总字节数
+     */
+    public ExternalSorter memoryBudget(long memoryBudget) {
+        if (memoryBudget < MIN_BUFFER_SIZE * 2) {
+            throw new IllegalArgumentException("memoryBudget太小：" + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * @param fanIn 一次归并的最大run数
+     */
+    public ExternalSorter fanIn(int fanIn) {
+        if (fanIn < 2) {
+            throw new IllegalArgumentException("fanIn至少为2：" + fanIn);
+        }
+        this.fanIn = fanIn;
+        return this;
+    }
+
+    public ExternalSorter parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism至少为1：" + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public ExternalSorter comparator(LineComparator comparator) {
+        this.comparator = comparator;
+        return this;
+    }
+
+    public ExternalSorter tempDir(Path tempDir) {
+        this.tempDir = tempDir;
+        return this;
+    }
+
+    /**
+     * @param executor 排序与归并使用的线程池，由调用者负责关闭；未指定时每次sort()创建parallelism个线程，结束后关闭
+     */
+    public ExternalSorter executor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public void sort(String input, String output) throws IOException {
+        sort(Paths.get(input), Paths.get(output));
+    }
+
+    public void sort(Path input, Path output) throws IOException {
+        Path workDir = Files.createTempDirectory(tempDir, "sort");
+        ExecutorService pool = executor != null ? executor : Executors.newFixedThreadPool(parallelism);
+        List<Path> runs = new ArrayList<>();
+        try {
+            runs.addAll(createRuns(input, workDir, pool));
+            int generation = 0;
+            while (runs.size() > fanIn) {
+                runs = mergePass(runs, workDir, pool, generation++);
+            }
+            merge(runs, output, memoryBudget);
+        } finally {
+            if (pool != executor) {
+                pool.shutdownNow();
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(workDir)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(workDir);
+        }
+    }
+
+    // ---------------------------------------------------------------- 切分阶段
+
+    private List<Path> createRuns(Path input, Path workDir, ExecutorService pool) throws IOException {
+        // 每个线程至少MIN_BUFFER_SIZE的内存，预算不够时减少同时排序的块数
+        int workers = (int) Math.max(1, Math.min(parallelism, memoryBudget / MIN_BUFFER_SIZE));
+        long perWorker = memoryBudget / workers;
+        final int writeBufferSize = (int) Math.min(Math.max(perWorker / 16, MIN_WRITE_BUFFER_SIZE), MIN_BUFFER_SIZE);
+        long available = Math.min(perWorker - writeBufferSize, Integer.MAX_VALUE - 8);
+        // 同时在内存中的块不超过workers个，保证总内存不超过预算
+        Semaphore permits = new Semaphore(workers);
+        List<Future<Path>> futures = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            double averageLine = sampleLineLength(in);
+            // 上一块末尾不完整的行，复制出来后不再引用上一块：等待许可时内存中最多workers块
+            byte[] carry = new byte[0];
+            boolean longLine = false;
+            boolean eof = false;
+            int index = 0;
+            while (true) {
+                // 一行比整块还长时沿用上一块的许可
+                if (!longLine) {
+                    acquire(permits);
+                }
+                int runSize = (int) Math.max(MIN_WRITE_BUFFER_SIZE, available * averageLine / (averageLine + LINE_INDEX_BYTES));
+                byte[] data = new byte[longLine ? carry.length * 2 : Math.max(runSize, carry.length)];
+                System.arraycopy(carry, 0, data, 0, carry.length);
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                buffer.position(carry.length);
+                carry = null;
+                while (!eof && buffer.hasRemaining()) {
+                    if (in.read(buffer) < 0) {
+                        eof = true;
+                    }
+                }
+                int length = buffer.position();
+
+                // 切分点：行索引放得下的最后一个完整行之后；最后一块的最后一行可以不以'\n'结尾
+                int maxLines = (int) Math.max(1, (available - data.length) / LINE_INDEX_BYTES);
+                int lines = 0;
+                int end = 0;
+                for (int i = 0; i < length && lines < maxLines; i++) {
+                    if (data[i] == '\n') {
+                        lines++;
+                        end = i + 1;
+                    }
+                }
+                if (eof && lines < maxLines && end < length) {
+                    lines++;
+                    end = length;
+                }
+                if (end == 0) {
+                    if (eof) {
+                        permits.release();
+                        break;
+                    }
+                    // 一行比整块还长，扩大缓冲区后继续读
+                    carry = data;
+                    longLine = true;
+                    continue;
+                }
+                averageLine = (double) end / lines;
+                carry = Arrays.copyOfRange(data, end, length);
+                longLine = false;
+
+                final int runLength = end;
+                final int lineCount = lines;
+                final Path run = workDir.resolve("run-" + index++);
+                futures.add(pool.submit(() -> {
+                    try {
+                        writeRun(data, runLength, lineCount, run, writeBufferSize);
+                        return run;
+                    } finally {
+                        permits.release();
+                    }
+                }));
+                if (eof && carry.length == 0) {
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            cancelAll(futures);
+            throw e;
+        }
+        return awaitAll(futures);
+    }
+
+    // 从文件开头取样估算平均行长，用于决定第一块的大小
+    private static double sampleLineLength(FileChannel in) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate(MIN_WRITE_BUFFER_SIZE);
+        in.read(sample, 0);
+        int lines = 0;
+        for (int i = 0; i < sample.position(); i++) {
+            if (sample.get(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines == 0 ? MIN_WRITE_BUFFER_SIZE : (double) sample.position() / lines;
+    }
+
+    private void writeRun(byte[] data, int length, int lineCount, Path run, int writeBufferSize) throws IOException {
+        long[] lines = splitLines(data, length, lineCount);
+        sortLines(data, lines);
+        try (FileChannel out = FileChannel.open(run, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(writeBufferSize);
+            for (long line : lines) {
+                writeLine(out, buffer, data, (int) (line >>> 32), (int) line);
+            }
+            flush(out, buffer);
+        }
+    }
+
+    // 每行编码为 (偏移 << 32) | 长度，长度不含'\n'
+    private static long[] splitLines(byte[] data, int length, int lineCount) {
+        long[] lines = new long[lineCount];
+        int count = 0;
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length ? start < length : data[i] == '\n') {
+                lines[count++] = (long) start << 32 | (i - start);
+                start = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    // 自底向上的归并排序，稳定，不装箱
+    private void sortLines(byte[] data, long[] lines) {
+        long[] src = lines;
+        long[] dst = new long[lines.length];
+        for (int width = 1; width < lines.length; width *= 2) {
+            for (int lo = 0; lo < lines.length; lo += width * 2) {
+                int mid = Math.min(lo + width, lines.length);
+                int hi = Math.min(lo + width * 2, lines.length);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    long a = src[i];
+                    long b = src[j];
+                    if (comparator.compare(data, (int) (a >>> 32), (int) a, data, (int) (b >>> 32), (int) b) <= 0) {
+                        dst[k++] = a;
+                        i++;
+                    } else {
+                        dst[k++] = b;
+                        j++;
+                    }
+                }
+                while (i < mid) {
+                    dst[k++] = src[i++];
+                }
+                while (j < hi) {
+                    dst[k++] = src[j++];
+                }
+            }
+            long[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        if (src != lines) {
+            System.arraycopy(src, 0, lines, 0, lines.length);
+        }
+    }
+
+    // ---------------------------------------------------------------- 归并阶段
+
+    private List<Path> mergePass(List<Path> runs, Path workDir, ExecutorService pool, int generation)
+            throws IOException {
+        int groups = (runs.size() + fanIn - 1) / fanIn;
+        int concurrency = Math.min(groups, parallelism);
+        final long budget = memoryBudget / concurrency;
+        // 外部传入的线程池可能有更多线程，同时归并的组数由permits限制
+        Semaphore permits = new Semaphore(concurrency);
+        List<Future<Path>> futures = new ArrayList<>();
+        try {
+            for (int g = 0; g < groups; g++) {
+                final List<Path> group = new ArrayList<>(runs.subList(g * fanIn, Math.min((g + 1) * fanIn, runs.size())));
+                final Path merged = workDir.resolve("merge-" + generation + "-" + g);
+                acquire(permits);
+                futures.add(pool.submit(() -> {
+                    try {
+                        merge(group, merged, budget);
+                        for (Path run : group) {
+                            Files.deleteIfExists(run);
+                        }
+                        return merged;
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        } catch (IOException | RuntimeException e) {
+            cancelAll(futures);
+            throw e;
+        }
+        return awaitAll(futures);
+    }
+
+    private void merge(List<Path> runs, Path output, long budget) throws IOException {
+        int bufferSize = (int) Math.min(Math.max(budget / (runs.size() + 1), MIN_BUFFER_SIZE), Integer.MAX_VALUE - 8);
+        PriorityQueue<RunReader> heap = new PriorityQueue<>(Math.max(runs.size(), 1), (a, b) ->
+                comparator.compare(a.data, a.lineOffset, a.lineLength, b.data, b.lineOffset, b.lineLength));
+        List<RunReader> readers = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(FileChannel.open(run, StandardOpenOption.READ), bufferSize);
+                readers.add(reader);
+                if (reader.next()) {
+                    heap.add(reader);
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            while (!heap.isEmpty()) {
+                RunReader reader = heap.poll();
+                writeLine(out, buffer, reader.data, reader.lineOffset, reader.lineLength);
+                if (reader.next()) {
+                    heap.add(reader);
+                }
+            }
+            flush(out, buffer);
+        } finally {
+            for (RunReader reader : readers) {
+                reader.channel.close();
+            }
+        }
+    }
+
+    /**
+     * 按行顺序读取一个run，当前行是data中的一个片段，调用next()后失效
+     */
+    private static final class RunReader {
+        final FileChannel channel;
+        byte[] data;
+        int position;
+        int limit;
+        int lineOffset;
+        int lineLength;
+        boolean eof;
+
+        RunReader(FileChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.data = new byte[bufferSize];
+        }
+
+        boolean next() throws IOException {
+            while (true) {
+                for (int i = position; i < limit; i++) {
+                    if (data[i] == '\n') {
+                        lineOffset = position;
+                        lineLength = i - position;
+                        position = i + 1;
+                        return true;
+                    }
+                }
+                if (eof) {
+                    if (position < limit) {
+                        lineOffset = position;
+                        lineLength = limit - position;
+                        position = limit;
+                        return true;
+                    }
+                    return false;
+                }
+                fill();
+            }
+        }
+
+        private void fill() throws IOException {
+            int remaining = limit - position;
+            if (position == 0 && limit == data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, limit);
+                data = grown;
+            } else {
+                System.arraycopy(data, position, data, 0, remaining);
+            }
+            position = 0;
+            limit = remaining;
+            ByteBuffer buffer = ByteBuffer.wrap(data, limit, data.length - limit);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            limit = buffer.position();
+        }
+    }
+
+    // ---------------------------------------------------------------- 工具方法
+
+    private static void writeLine(FileChannel out, ByteBuffer buffer, byte[] data, int offset, int length)
+            throws IOException {
+        if (buffer.remaining() < length + 1) {
+            flush(out, buffer);
+            if (buffer.remaining() < length + 1) {
+                // 超长的行直接写出
+                ByteBuffer line = ByteBuffer.wrap(data, offset, length);
+                while (line.hasRemaining()) {
+                    out.write(line);
+                }
+            } else {
+                buffer.put(data, offset, length);
+            }
+        } else {
+            buffer.put(data, offset, length);
+        }
+        buffer.put((byte) '\n');
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void acquire(Semaphore permits) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("排序被中断", e);
+        }
+    }
+
+    private static <T> List<T> awaitAll(List<Future<T>> futures) throws IOException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(await(future));
+            }
+            return results;
+        } finally {
+            if (results.size() < futures.size()) {
+                cancelAll(futures);
+            }
+        }
+    }
+
+    // 出错时取消已提交的任务：外部传入的线程池不会被shutdownNow()，需要逐个取消
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("排序被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package com.atguigu.java.io;
 
+import com.atguigu.java.nio.PackFile;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * 测试FileInputStream与OutputStream使用
@@ -143,4 +151,32 @@ public class FileInputOutputStreamTest {
         long end = System.currentTimeMillis();
         System.out.println("复制文件花费时间为：" + (end - start));
     }
+
+    // 把多个小文件打包存储到一个大文件中，按名称读取
+    @Test
+    public void testPackFile() throws IOException {
+        PackFile pack = new PackFile("assets");
+        try {
+            // 1. 批量追加（聚集写入）
+            Map<String, ByteBuffer> files = new LinkedHashMap<>();
+            files.put("hello.jfif", ByteBuffer.wrap(Files.readAllBytes(Paths.get("hello.jfif"))));
+            files.put("hello.txt", ByteBuffer.wrap(Files.readAllBytes(Paths.get("hello.txt"))));
+            pack.appendAll(files);
+            pack.flushIndex();
+
+            // 2. 读取：返回映射文件上的只读切片
+            ByteBuffer data = pack.get("hello.txt");
+            byte[] dst = new byte[data.remaining()];
+            data.get(dst);
+            System.out.println(new String(dst));
+
+            // 3. 直接发送到另一个通道
+            FileChannel outChannel = FileChannel.open(Paths.get("world.jfif"), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            pack.transferTo("hello.jfif", outChannel);
+            outChannel.close();
+        } finally {
+            pack.close();
+        }
+    }
 }
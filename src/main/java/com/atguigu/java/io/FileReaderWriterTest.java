@@ -1,11 +1,14 @@
 package com.atguigu.java.io;
 
+import com.atguigu.java.nio.TextAnalyzer;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 /**
  * <pre>
@@ -153,4 +156,26 @@ public class FileReaderWriterTest {
             }
         }
     }
+
+    /**
+     * 大文件的词频与字符统计：分块映射，多线程解码与计数，最后合并
+     */
+    @Test
+    public void testTextAnalyzer() throws IOException {
+        long start = System.currentTimeMillis();
+
+        TextAnalyzer.Result result = new TextAnalyzer(StandardCharsets.UTF_8)
+                .chunkSize(8 * 1024 * 1024)
+                .analyze("hello.txt");
+
+        long end = System.currentTimeMillis();
+        System.out.println("耗费时间为：" + (end - start));
+
+        System.out.println("字符数：" + result.getTotalChars() + "，单词数：" + result.getTotalTokens()
+                + "，不同的单词：" + result.getDistinctTokens());
+        for (Map.Entry<String, Long> entry : result.topTokens(10)) {
+            System.out.println(entry.getKey() + "\t" + entry.getValue());
+        }
+        System.out.println(result.topChars(10));
+    }
 }
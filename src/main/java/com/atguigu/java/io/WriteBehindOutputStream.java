@@ -0,0 +1,405 @@
+package com.atguigu.java.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台写出的缓冲流（双缓冲）：调用者写入一个缓冲区，后台线程同时把另一个缓冲区写到底层的流或通道
+ * <pre>
+ * 1. 内存固定为两个缓冲区，只有两个缓冲区都被占用时（磁盘跟不上）调用者才会等待
+ * 2. 当前缓冲区达到flushSize，或数据停留超过flushInterval毫秒时交给后台线程写出；
+ *    后台线程正在写出时不等待，继续写入当前缓冲区直到bufferSize，后台线程写完后接走当前缓冲区，
+ *    当前缓冲区写满时调用者才等待
+ * 3. flush()不会等待：后台线程空闲时立即交接，正在写出时记下请求，写完后由后台线程接走当前缓冲区；
+ *    需要确认写完时调用drain()
+ * 4. 后台写出时发生的异常在下一次write()、flush()、drain()或close()时抛出
+ * 5. 默认每个流启动一个后台线程；也可以传入Executor（例如Executors.newCachedThreadPool()），
+ *    后台任务一直运行到close()，因此Executor必须能立即为每个流提供一个线程
+ *
+ * 说明：与BufferedOutputStream一样不是线程安全的（内部的同步只用于调用者与后台线程之间）
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-14 15:10
+ */
+public class WriteBehindOutputStream extends OutputStream implements WritableByteChannel {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    // 默认每个流一个后台线程
+    private static final Executor NEW_THREAD = task -> {
+        Thread writer = new Thread(task, "write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    };
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private final int flushSize;
+    private final long flushIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition handedOff = lock.newCondition(); // 有缓冲区等待写出，或者正在关闭
+    private final Condition released = lock.newCondition(); // 后台线程写完了一个缓冲区
+
+    // 以下字段由lock保护
+    private ByteBuffer active; // 调用者正在写入的缓冲区
+    private ByteBuffer spare; // 空闲的缓冲区，为null表示正在等待或正在被写出
+    private ByteBuffer pending; // 等待后台线程写出的缓冲区
+    private long activeSince; // active中第一个字节写入的时间
+    private boolean flushRequested;
+    private boolean closed;
+    private boolean stopped; // 后台任务已退出
+    private IOException error;
+
+    public WriteBehindOutputStream(OutputStream out) {
+        this(out, null, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL, NEW_THREAD);
+    }
+
+    /**
+     * @param bufferSize    每个缓冲区的大小
+     * @param flushSize     当前缓冲区达到这个大小时交给空闲的后台线程，不超过bufferSize；
+     *                      后台线程正忙时继续写入，bufferSize - flushSize是磁盘变慢时的余量
+     * @param flushInterval 数据在缓冲区中停留的最长毫秒数，0表示不限制
+     */
+    public WriteBehindOutputStream(OutputStream out, int bufferSize, int flushSize, long flushInterval) {
+        this(out, null, bufferSize, flushSize, flushInterval, NEW_THREAD);
+    }
+
+    /**
+     * @param executor 运行后台任务的线程池，由调用者负责关闭
+     */
+    public WriteBehindOutputStream(OutputStream out, int bufferSize, int flushSize, long flushInterval,
+                                   Executor executor) {
+        this(out, null, bufferSize, flushSize, flushInterval, executor);
+    }
+
+    public WriteBehindOutputStream(WritableByteChannel channel) {
+        this(null, channel, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL, NEW_THREAD);
+    }
+
+    public WriteBehindOutputStream(WritableByteChannel channel, int bufferSize, int flushSize, long flushInterval) {
+        this(null, channel, bufferSize, flushSize, flushInterval, NEW_THREAD);
+    }
+
+    public WriteBehindOutputStream(WritableByteChannel channel, int bufferSize, int flushSize, long flushInterval,
+                                   Executor executor) {
+        this(null, channel, bufferSize, flushSize, flushInterval, executor);
+    }
+
+    private WriteBehindOutputStream(OutputStream out, WritableByteChannel channel, int bufferSize, int flushSize,
+                                    long flushInterval, Executor executor) {
+        if (bufferSize <= 0 || flushSize <= 0 || flushSize > bufferSize || flushInterval < 0) {
+            throw new IllegalArgumentException("bufferSize：" + bufferSize + "，flushSize：" + flushSize
+                    + "，flushInterval：" + flushInterval);
+        }
+        this.out = out;
+        this.channel = channel;
+        this.flushSize = flushSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        this.active = ByteBuffer.allocate(bufferSize);
+        this.spare = ByteBuffer.allocate(bufferSize);
+        executor.execute(this::drainLoop);
+    }
+
+
+    @Override
+    public void write(int b) throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            markActive();
+            active.put((byte) b);
+            afterWrite();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        lock.lock();
+        try {
+            ensureOpen();
+            while (len > 0) {
+                markActive();
+                int n = Math.min(len, active.remaining());
+                active.put(b, off, n);
+                off += n;
+                len -= n;
+                afterWrite();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int total = src.remaining();
+        lock.lock();
+        try {
+            ensureOpen();
+            while (src.hasRemaining()) {
+                markActive();
+                int n = Math.min(src.remaining(), active.remaining());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                active.put(part);
+                src.position(src.position() + n);
+                afterWrite();
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把当前缓冲区交给后台线程写出，不等待写完
+     */
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            if (active.position() > 0) {
+                if (spare != null) {
+                    swap();
+                } else {
+                    flushRequested = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把已写入的数据全部写到底层的流或通道，等待写完后返回
+     */
+    public void drain() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            handOff();
+            awaitSpare();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写出剩余的数据，停止后台线程，然后关闭底层的流或通道
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                handOff();
+                awaitSpare();
+            } catch (IOException e) {
+                failure = e;
+            }
+            closed = true;
+            handedOff.signalAll();
+            while (!stopped) {
+                released.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (out != null) {
+                out.close();
+            } else {
+                channel.close();
+            }
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // ---------------------------------------------------------------- 调用者与后台线程的交接
+
+    private void ensureOpen() throws IOException {
+        if (error != null) {
+            throw new IOException("后台写出失败", error);
+        }
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void markActive() {
+        if (active.position() == 0) {
+            activeSince = System.nanoTime();
+        }
+    }
+
+    // 达到flushSize时：后台线程空闲就交接；正忙时记下请求，写完后由后台线程接走；active写满时等待
+    private void afterWrite() throws IOException {
+        if (active.position() < flushSize) {
+            return;
+        }
+        if (spare == null && active.hasRemaining()) {
+            flushRequested = true;
+            return;
+        }
+        // 等待期间后台线程可能已经接走了active
+        while (spare == null && !active.hasRemaining()) {
+            awaitReleased();
+        }
+        if (spare != null && active.position() >= flushSize) {
+            swap();
+        }
+    }
+
+    // 把active中的数据全部交给后台线程，不等待写完；两个缓冲区都被占用时等待
+    private void handOff() throws IOException {
+        while (active.position() > 0) {
+            awaitSpare();
+            if (active.position() > 0) {
+                swap();
+            }
+        }
+    }
+
+    private void swap() {
+        active.flip();
+        pending = active;
+        active = spare;
+        spare = null;
+        flushRequested = false;
+        handedOff.signal();
+    }
+
+    private void awaitSpare() throws IOException {
+        while (spare == null) {
+            awaitReleased();
+        }
+        if (error != null) {
+            throw new IOException("后台写出失败", error);
+        }
+    }
+
+    private void awaitReleased() throws IOException {
+        if (error != null) {
+            throw new IOException("后台写出失败", error);
+        }
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待后台写出时被中断");
+        }
+    }
+
+    private void drainLoop() {
+        try {
+            drainBuffers();
+        } finally {
+            lock.lock();
+            try {
+                stopped = true;
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void drainBuffers() {
+        while (true) {
+            ByteBuffer buffer;
+            lock.lock();
+            try {
+                while (pending == null) {
+                    if (closed) {
+                        return;
+                    }
+                    if (flushIntervalNanos == 0 || active.position() == 0 || error != null) {
+                        handedOff.awaitUninterruptibly();
+                        continue;
+                    }
+                    long wait = activeSince + flushIntervalNanos - System.nanoTime();
+                    if (wait > 0) {
+                        handedOff.awaitNanos(wait);
+                    } else if (error == null) {
+                        // 数据停留太久，后台线程自己交接（此时spare一定空闲）
+                        swap();
+                    }
+                }
+                buffer = pending;
+                pending = null;
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException failure = null;
+            try {
+                if (out != null) {
+                    out.write(buffer.array(), buffer.position(), buffer.remaining());
+                    out.flush();
+                } else {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            lock.lock();
+            try {
+                if (failure != null && error == null) {
+                    error = failure;
+                }
+                buffer.clear();
+                spare = buffer;
+                if (flushRequested && error == null && active.position() > 0) {
+                    swap();
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package com.atguigu.java.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于AsynchronousFileChannel的异步文件读写，返回CompletableFuture
+ * <pre>
+ * 1. 请求先进入队列，同时执行的读写不超过maxInFlight个，其余的排队，一个文件不会占满整个线程池
+ * 2. 排队的读请求按位置排序，相邻、重叠或间隔不超过maxGap的请求合并为一次读取（总长度不超过maxCoalesceSize），
+ *    合并后的结果按各自的范围切片返回
+ * 3. 按位置从小到大轮流取出排队的读请求（电梯算法），到末尾后从头开始，不会饿死位置小的请求
+ * 4. 读取时处理短读，一直读满或到文件末尾；到文件末尾时返回的数据比请求的短
+ * 5. 批量提交（readAll）时所有请求一次入队，合并的机会最多
+ *
+ * 说明：读取的结果是只读的，合并读取时多个结果共享同一个缓冲区；重叠的读与写之间不保证顺序；
+ *      future在线程池的线程中完成，后续的回调不要做阻塞的操作
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-16 15:40
+ */
+public class AsyncFile implements Closeable {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final int DEFAULT_MAX_COALESCE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_GAP = 4 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final AsynchronousFileChannel channel;
+    private final ExecutorService ownedPool; // 自己创建的线程池，关闭时一起关闭
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // 以下字段由lock保护
+    private final TreeMap<Long, List<ReadRequest>> pendingReads = new TreeMap<>();
+    private final ArrayDeque<WriteRequest> pendingWrites = new ArrayDeque<>();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int maxCoalesceSize = DEFAULT_MAX_COALESCE_SIZE;
+    private int maxGap = DEFAULT_MAX_GAP;
+    private long cursor; // 电梯算法当前的位置
+    private int inFlight;
+    private boolean closed;
+
+    private final LongAdder requestedReads = new LongAdder();
+    private final LongAdder physicalReads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    private final CompletionHandler<Integer, ReadBatch> readHandler = new ReadHandler();
+    private final CompletionHandler<Integer, WriteRequest> writeHandler = new WriteHandler();
+
+    public static AsyncFile open(String path, OpenOption... options) throws IOException {
+        return new AsyncFile(Paths.get(path), options);
+    }
+
+    /**
+     * 使用自己的线程池（DEFAULT_THREADS个线程），关闭文件时关闭线程池
+     *
+     * @param options 为空时以只读方式打开
+     */
+    public AsyncFile(Path path, OpenOption... options) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(DEFAULT_THREADS, r -> {
+            Thread thread = new Thread(r, "async-file");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            this.channel = AsynchronousFileChannel.open(path, toSet(options), pool);
+        } catch (IOException | RuntimeException e) {
+            pool.shutdown();
+            throw e;
+        }
+        this.ownedPool = pool;
+    }
+
+    /**
+     * 多个文件共用一个线程池，关闭文件时不关闭线程池
+     */
+    public AsyncFile(Path path, ExecutorService pool, OpenOption... options) throws IOException {
+        this.channel = AsynchronousFileChannel.open(path, toSet(options), pool);
+        this.ownedPool = null;
+    }
+
+    private static Set<OpenOption> toSet(OpenOption[] options) {
+        Set<OpenOption> set = new HashSet<>(Arrays.asList(options));
+        if (set.isEmpty()) {
+            set.add(StandardOpenOption.READ);
+        }
+        return set;
+    }
+
+    public AsyncFile maxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight必须大于0：" + maxInFlight);
+        }
+        lock.lock();
+        try {
+            this.maxInFlight = maxInFlight;
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+        return this;
+    }
+
+    /**
+     * @param maxCoalesceSize 合并后一次读取的最大字节数，为1时不合并
+     */
+    public AsyncFile maxCoalesceSize(int maxCoalesceSize) {
+        if (maxCoalesceSize <= 0) {
+            throw new IllegalArgumentException("maxCoalesceSize必须大于0：" + maxCoalesceSize);
+        }
+        lock.lock();
+        try {
+            this.maxCoalesceSize = maxCoalesceSize;
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * @param maxGap 两个请求之间最多间隔多少字节仍然合并（间隔的数据会被读取后丢弃）
+     */
+    public AsyncFile maxGap(int maxGap) {
+        if (maxGap < 0) {
+            throw new IllegalArgumentException("maxGap不能小于0：" + maxGap);
+        }
+        lock.lock();
+        try {
+            this.maxGap = maxGap;
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    // ---------------------------------------------------------------- 读写
+
+    /**
+     * 读取[position, position + length)，到文件末尾时返回的数据较短（position在文件末尾之后时为空）
+     */
+    public CompletableFuture<ByteBuffer> read(long position, int length) {
+        if (position < 0 || length < 0) {
+            throw new IllegalArgumentException("position：" + position + "，length：" + length);
+        }
+        ReadRequest request = new ReadRequest(position, length);
+        if (length == 0) {
+            request.future.complete(EMPTY);
+            return request.future;
+        }
+        lock.lock();
+        try {
+            enqueue(request);
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+        return request.future;
+    }
+
+    /**
+     * 批量读取，所有请求一次入队
+     *
+     * @return 全部完成时完成，结果与参数的顺序相同；任何一个失败时以该异常失败
+     */
+    public CompletableFuture<List<ByteBuffer>> readAll(long[] positions, int[] lengths) {
+        if (positions.length != lengths.length) {
+            throw new IllegalArgumentException("positions与lengths的长度不同");
+        }
+        List<ReadRequest> requests = new ArrayList<>(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i] < 0 || lengths[i] < 0) {
+                throw new IllegalArgumentException("position：" + positions[i] + "，length：" + lengths[i]);
+            }
+            ReadRequest request = new ReadRequest(positions[i], lengths[i]);
+            if (lengths[i] == 0) {
+                request.future.complete(EMPTY);
+            }
+            requests.add(request);
+        }
+        lock.lock();
+        try {
+            for (ReadRequest request : requests) {
+                if (!request.future.isDone()) {
+                    enqueue(request);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+
+        CompletableFuture<List<ByteBuffer>> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(requests.size());
+        ByteBuffer[] buffers = new ByteBuffer[requests.size()];
+        if (requests.isEmpty()) {
+            result.complete(new ArrayList<>());
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            final int index = i;
+            requests.get(i).future.whenComplete((buffer, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    buffers[index] = buffer;
+                    if (remaining.decrementAndGet() == 0) {
+                        result.complete(Arrays.asList(buffers));
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 把src的剩余内容全部写到position处，写不完时继续写
+     *
+     * @return 写入的字节数
+     */
+    public CompletableFuture<Integer> write(long position, ByteBuffer src) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position：" + position);
+        }
+        WriteRequest request = new WriteRequest(position, src.duplicate());
+        src.position(src.limit());
+        lock.lock();
+        try {
+            if (closed) {
+                request.future.completeExceptionally(new ClosedChannelException());
+                return request.future;
+            }
+            pendingWrites.add(request);
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+        return request.future;
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * 把已写入的数据刷到磁盘（同步调用）
+     */
+    public void force(boolean metaData) throws IOException {
+        channel.force(metaData);
+    }
+
+    /**
+     * 关闭文件，排队与正在执行的请求以AsynchronousCloseException失败
+     */
+    @Override
+    public void close() throws IOException {
+        List<CompletableFuture<?>> failed = new ArrayList<>();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (List<ReadRequest> requests : pendingReads.values()) {
+                for (ReadRequest request : requests) {
+                    failed.add(request.future);
+                }
+            }
+            pendingReads.clear();
+            for (WriteRequest request : pendingWrites) {
+                failed.add(request.future);
+            }
+            pendingWrites.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (CompletableFuture<?> future : failed) {
+            future.completeExceptionally(new AsynchronousCloseException());
+        }
+        try {
+            channel.close();
+        } finally {
+            if (ownedPool != null) {
+                ownedPool.shutdown();
+            }
+        }
+    }
+
+    public long getRequestedReads() {
+        return requestedReads.sum();
+    }
+
+    /**
+     * @return 实际发出的读取次数（合并后）
+     */
+    public long getPhysicalReads() {
+        return physicalReads.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncFile{requestedReads=" + getRequestedReads() + ", physicalReads=" + getPhysicalReads()
+                + ", writes=" + getWrites() + "}";
+    }
+
+    // ---------------------------------------------------------------- 排队与合并
+
+    private static final class ReadRequest {
+        final long position;
+        final int length;
+        final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+
+        ReadRequest(long position, int length) {
+            this.position = position;
+            this.length = length;
+        }
+
+        long end() {
+            return position + length;
+        }
+    }
+
+    private static final class WriteRequest {
+        final long position;
+        final ByteBuffer src;
+        final int length;
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        WriteRequest(long position, ByteBuffer src) {
+            this.position = position;
+            this.src = src;
+            this.length = src.remaining();
+        }
+    }
+
+    // 合并后的一次读取：[start, end)
+    private static final class ReadBatch {
+        final long start;
+        final List<ReadRequest> requests;
+        final ByteBuffer buffer;
+
+        ReadBatch(long start, long end, List<ReadRequest> requests) {
+            this.start = start;
+            this.requests = requests;
+            this.buffer = ByteBuffer.allocate((int) (end - start));
+        }
+    }
+
+    // 调用者持有lock
+    private void enqueue(ReadRequest request) {
+        if (closed) {
+            request.future.completeExceptionally(new ClosedChannelException());
+            return;
+        }
+        requestedReads.increment();
+        List<ReadRequest> requests = pendingReads.get(request.position);
+        if (requests == null) {
+            requests = new ArrayList<>(1);
+            pendingReads.put(request.position, requests);
+        }
+        requests.add(request);
+    }
+
+    // 在不超过maxInFlight的前提下取出排队的请求并发出；在锁外发出，避免回调在当前线程执行时重入
+    private void dispatch() {
+        List<WriteRequest> startWrites = new ArrayList<>();
+        List<ReadBatch> startReads = new ArrayList<>();
+        lock.lock();
+        try {
+            while (!closed && inFlight < maxInFlight) {
+                WriteRequest write = pendingWrites.poll();
+                if (write != null) {
+                    startWrites.add(write);
+                } else {
+                    ReadBatch batch = nextReadBatch();
+                    if (batch == null) {
+                        break;
+                    }
+                    startReads.add(batch);
+                }
+                inFlight++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (WriteRequest write : startWrites) {
+            writes.increment();
+            continueWrite(write);
+        }
+        for (ReadBatch batch : startReads) {
+            physicalReads.increment();
+            continueRead(batch);
+        }
+    }
+
+    // 调用者持有lock；从cursor开始取位置最小的请求，再向后合并
+    private ReadBatch nextReadBatch() {
+        Map.Entry<Long, List<ReadRequest>> first = pendingReads.ceilingEntry(cursor);
+        if (first == null) {
+            first = pendingReads.firstEntry();
+            if (first == null) {
+                return null;
+            }
+        }
+        long start = first.getKey();
+        long end = start;
+        List<ReadRequest> requests = new ArrayList<>();
+        Iterator<Map.Entry<Long, List<ReadRequest>>> it = pendingReads.tailMap(start, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, List<ReadRequest>> entry = it.next();
+            long entryEnd = end;
+            for (ReadRequest request : entry.getValue()) {
+                entryEnd = Math.max(entryEnd, request.end());
+            }
+            if (!requests.isEmpty() && (entry.getKey() > end + maxGap || entryEnd - start > maxCoalesceSize)) {
+                break;
+            }
+            if (entryEnd - start > Integer.MAX_VALUE) {
+                // 同一位置上的请求合起来超过2GB，只取第一个，其余的留在队列中
+                ReadRequest request = entry.getValue().remove(0);
+                requests.add(request);
+                end = request.end();
+                if (entry.getValue().isEmpty()) {
+                    it.remove();
+                }
+                break;
+            }
+            requests.addAll(entry.getValue());
+            end = entryEnd;
+            it.remove();
+        }
+        cursor = end;
+        return new ReadBatch(start, end, requests);
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inFlight--;
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+    }
+
+    // ---------------------------------------------------------------- 回调
+
+    private void continueRead(ReadBatch batch) {
+        try {
+            channel.read(batch.buffer, batch.start + batch.buffer.position(), batch, readHandler);
+        } catch (RuntimeException e) {
+            readHandler.failed(e, batch);
+        }
+    }
+
+    private void continueWrite(WriteRequest request) {
+        try {
+            channel.write(request.src, request.position + (request.length - request.src.remaining()), request,
+                    writeHandler);
+        } catch (RuntimeException e) {
+            writeHandler.failed(e, request);
+        }
+    }
+
+    private final class ReadHandler implements CompletionHandler<Integer, ReadBatch> {
+        @Override
+        public void completed(Integer n, ReadBatch batch) {
+            if (n > 0 && batch.buffer.hasRemaining()) {
+                // 短读，继续读剩下的部分
+                continueRead(batch);
+                return;
+            }
+            // 读满了，或者到了文件末尾
+            ByteBuffer data = batch.buffer;
+            data.flip();
+            release();
+            for (ReadRequest request : batch.requests) {
+                int from = (int) Math.min(request.position - batch.start, data.limit());
+                int to = (int) Math.min(request.end() - batch.start, data.limit());
+                ByteBuffer slice = data.duplicate();
+                slice.limit(to).position(from);
+                request.future.complete(slice.slice().asReadOnlyBuffer());
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, ReadBatch batch) {
+            release();
+            for (ReadRequest request : batch.requests) {
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final class WriteHandler implements CompletionHandler<Integer, WriteRequest> {
+        @Override
+        public void completed(Integer n, WriteRequest request) {
+            if (request.src.hasRemaining()) {
+                continueWrite(request);
+                return;
+            }
+            release();
+            request.future.complete(request.length);
+        }
+
+        @Override
+        public void failed(Throwable e, WriteRequest request) {
+            release();
+            request.future.completeExceptionally(e);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.atguigu.java.nio;
 
 import org.junit.Test;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
@@ -41,6 +42,31 @@ import java.nio.ByteBuffer;
  */
 public class BufferTest {
 
+    // 通过LongBuffer、DoubleBuffer视图读写列式数据文件
+    @Test
+    public void test3() throws IOException {
+        // 1. 创建文件，每个字段一列
+        ColumnFile file = ColumnFile.create("metrics.col", 1000000,
+                ColumnFile.column("time", ColumnFile.Type.LONG),
+                ColumnFile.column("value", ColumnFile.Type.DOUBLE));
+        ColumnFile.LongColumn time = file.longColumn("time");
+        ColumnFile.DoubleColumn value = file.doubleColumn("value");
+        for (int i = 0; i < 1000000; i++) {
+            time.set(i, 1620000000000L + i * 1000L);
+            value.set(i, Math.sin(i));
+        }
+        file.close();
+
+        // 2. 只读打开，并行聚合
+        file = ColumnFile.open("metrics.col");
+        value = file.doubleColumn("value");
+        System.out.println("sum：" + value.sum());
+        System.out.println("min：" + value.min());
+        System.out.println("max：" + value.max());
+        System.out.println("count(value > 0.5)：" + value.count(v -> v > 0.5));
+        file.close();
+    }
+
     @Test
     public void test2() {
         // 分配直接缓冲区
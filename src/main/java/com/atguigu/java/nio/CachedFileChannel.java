@@ -0,0 +1,437 @@
+package com.atguigu.java.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带块缓存的只读文件通道：把文件按固定大小的块缓存在堆外内存中，热点的随机读不再需要系统调用
+ * <pre>
+ * 1. 缓存分为多个分片（shard），块号决定所在的分片，每个分片一把锁，减少多线程竞争
+ * 2. 每个分片一块直接缓冲区（allocateDirect()），按块大小切分为帧，总大小固定
+ * 3. 淘汰算法为CLOCK：命中时设置引用位，时钟指针扫到引用位为1的帧时清零并跳过，为0时淘汰
+ * 4. 顺序读检测：连续多次读取都从上一次读取的最后一块（或其下一块）开始时，一次大块读取后续readAhead个块放入缓存；
+ *    按调用而不是按块判断，一次跨越多个块的随机读不会触发预读
+ * 5. 统计命中、未命中、淘汰与预读的次数
+ *
+ * 说明：假定缓存期间文件内容不被修改；未命中时在分片锁内读取文件，同一分片的其他读取需要等待
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-13 15:40
+ */
+public class CachedFileChannel implements SeekableByteChannel {
+
+    public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+    public static final int DEFAULT_SHARDS = 16;
+    public static final int DEFAULT_READ_AHEAD = 16;
+
+    // 连续读取多少个相邻的块后开始预读
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final int blockShift;
+    private final Shard[] shards;
+    private final int readAhead;
+    private final ByteBuffer readAheadBuffer;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder readAheadBlocks = new LongAdder();
+
+    private volatile long lastBlock = -1;
+    private volatile int sequentialCount;
+    private long position;
+
+    public static CachedFileChannel open(String path) throws IOException {
+        return open(Paths.get(path));
+    }
+
+    public static CachedFileChannel open(Path path) throws IOException {
+        return new CachedFileChannel(FileChannel.open(path, StandardOpenOption.READ),
+                DEFAULT_BLOCK_SIZE, DEFAULT_CAPACITY, DEFAULT_SHARDS, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * @param channel   被包装的通道，关闭CachedFileChannel时一起关闭
+     * @param blockSize 块大小，必须是2的幂
+     * @param capacity  缓存的总字节数
+     * @param shards    分片数，必须是2的幂
+     * @param readAhead 每次预读的块数，为0时不预读
+     */
+    public CachedFileChannel(FileChannel channel, int blockSize, long capacity, int shards, int readAhead) {
+        if (Integer.bitCount(blockSize) != 1 || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("blockSize和shards必须是2的幂");
+        }
+        int framesPerShard = (int) Math.max(1, capacity / blockSize / shards);
+        if ((long) framesPerShard * blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("每个分片的缓存不能超过2GB，请增加分片数");
+        }
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.blockShift = Integer.numberOfTrailingZeros(blockSize);
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard(framesPerShard);
+        }
+        this.readAhead = readAhead;
+        this.readAheadBuffer = readAhead > 0 ? ByteBuffer.allocateDirect(readAhead * blockSize) : null;
+    }
+
+    /**
+     * 从指定位置读取，不修改通道的位置，可以被多个线程同时调用
+     *
+     * @return 读取的字节数，位置已到文件末尾时返回-1
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("position不能为负数：" + position);
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        boolean sequential = detectSequential(position >>> blockShift,
+                (position + dst.remaining() - 1) >>> blockShift);
+        int total = 0;
+        while (dst.hasRemaining()) {
+            long block = position >>> blockShift;
+            int n = readBlock(block, (int) (position & (blockSize - 1)), dst, sequential);
+            if (n <= 0) {
+                break;
+            }
+            total += n;
+            position += n;
+        }
+        return total == 0 && dst.hasRemaining() ? -1 : total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    @Override
+    public synchronized CachedFileChannel position(long newPosition) throws IOException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("position不能为负数：" + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getReadAheadCount() {
+        return readAheadBlocks.sum();
+    }
+
+    public double hitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "CachedFileChannel{hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", hitRatio=" + String.format("%.4f", hitRatio()) + ", evictions=" + getEvictionCount()
+                + ", readAhead=" + getReadAheadCount() + "}";
+    }
+
+    // ---------------------------------------------------------------- 块的读取
+
+    private int readBlock(long block, int offset, ByteBuffer dst, boolean sequential) throws IOException {
+        Shard shard = shardOf(block);
+        int n = shard.copy(block, offset, dst);
+        if (n != Shard.ABSENT) {
+            hits.increment();
+            return n;
+        }
+        misses.increment();
+        if (sequential && readAhead > 0) {
+            prefetch(block);
+        }
+        return shard.load(block, offset, dst);
+    }
+
+    // 比较本次读取的第一块与上一次读取的最后一块；多线程下只是启发式的判断，不需要精确
+    private boolean detectSequential(long firstBlock, long endBlock) {
+        long last = lastBlock;
+        if (firstBlock == last + 1) {
+            sequentialCount++;
+        } else if (firstBlock != last) {
+            sequentialCount = 0;
+        }
+        lastBlock = endBlock;
+        return sequentialCount >= SEQUENTIAL_THRESHOLD;
+    }
+
+    // 一次读取block开始的readAhead个块，放入各自的分片
+    private void prefetch(long block) throws IOException {
+        synchronized (readAheadBuffer) {
+            readAheadBuffer.clear();
+            long start = block << blockShift;
+            while (readAheadBuffer.hasRemaining()) {
+                if (channel.read(readAheadBuffer, start + readAheadBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            int length = readAheadBuffer.position();
+            for (int i = 0; i * blockSize < length; i++) {
+                ByteBuffer data = readAheadBuffer.duplicate();
+                data.position(i * blockSize).limit(Math.min((i + 1) * blockSize, length));
+                if (shardOf(block + i).put(block + i, data)) {
+                    readAheadBlocks.increment();
+                }
+            }
+        }
+    }
+
+    private Shard shardOf(long block) {
+        long h = block * 0x9E3779B97F4A7C15L;
+        return shards[(int) (h >>> 40) & (shards.length - 1)];
+    }
+
+    /**
+     * 缓存的一个分片：固定数量的帧 + 块号到帧号的映射 + CLOCK淘汰
+     */
+    private final class Shard {
+        static final int ABSENT = Integer.MIN_VALUE;
+
+        final ByteBuffer slab;
+        final long[] frameBlock; // 帧中的块号，-1表示空闲
+        final int[] frameLength; // 帧中有效的字节数，文件最后一块可能不满
+        final boolean[] referenced;
+        final LongIntMap index;
+        int hand;
+
+        Shard(int frames) {
+            slab = ByteBuffer.allocateDirect(frames * blockSize);
+            frameBlock = new long[frames];
+            Arrays.fill(frameBlock, -1);
+            frameLength = new int[frames];
+            referenced = new boolean[frames];
+            index = new LongIntMap(frames);
+        }
+
+        /**
+         * @return 复制的字节数，块已到文件末尾时返回-1，块不在缓存中时返回ABSENT
+         */
+        synchronized int copy(long block, int offset, ByteBuffer dst) {
+            int frame = index.get(block);
+            if (frame < 0) {
+                return ABSENT;
+            }
+            referenced[frame] = true;
+            return copyFrame(frame, offset, dst);
+        }
+
+        /**
+         * 从文件读取块放入缓存，再复制到dst
+         */
+        synchronized int load(long block, int offset, ByteBuffer dst) throws IOException {
+            int frame = index.get(block);
+            if (frame < 0) {
+                frame = evict();
+                ByteBuffer target = frameBuffer(frame);
+                long start = block << blockShift;
+                while (target.hasRemaining()) {
+                    if (channel.read(target, start + target.position()) < 0) {
+                        break;
+                    }
+                }
+                install(frame, block, target.position());
+            }
+            referenced[frame] = true;
+            return copyFrame(frame, offset, dst);
+        }
+
+        /**
+         * 放入预读的块，块已在缓存中时忽略
+         *
+         * @return 是否放入了缓存
+         */
+        synchronized boolean put(long block, ByteBuffer data) {
+            if (index.get(block) >= 0) {
+                return false;
+            }
+            int frame = evict();
+            int length = data.remaining();
+            frameBuffer(frame).put(data);
+            install(frame, block, length);
+            return true;
+        }
+
+        private void install(int frame, long block, int length) {
+            frameBlock[frame] = block;
+            frameLength[frame] = length;
+            referenced[frame] = false;
+            index.put(block, frame);
+        }
+
+        private int copyFrame(int frame, int offset, ByteBuffer dst) {
+            int length = frameLength[frame];
+            if (offset >= length) {
+                return -1;
+            }
+            int n = Math.min(length - offset, dst.remaining());
+            ByteBuffer src = slab.duplicate();
+            int base = frame * blockSize;
+            src.position(base + offset).limit(base + offset + n);
+            dst.put(src);
+            return n;
+        }
+
+        private ByteBuffer frameBuffer(int frame) {
+            ByteBuffer buffer = slab.duplicate();
+            buffer.position(frame * blockSize).limit((frame + 1) * blockSize);
+            return buffer.slice();
+        }
+
+        // CLOCK：找到一个空闲帧或引用位为0的帧
+        private int evict() {
+            while (true) {
+                int frame = hand;
+                hand = (hand + 1) % frameBlock.length;
+                if (frameBlock[frame] < 0) {
+                    return frame;
+                }
+                if (referenced[frame]) {
+                    referenced[frame] = false;
+                } else {
+                    index.remove(frameBlock[frame]);
+                    frameBlock[frame] = -1;
+                    evictions.increment();
+                    return frame;
+                }
+            }
+        }
+    }
+
+    /**
+     * long到int的开放寻址哈希表（线性探测，删除时后移），避免Long装箱
+     */
+    private static final class LongIntMap {
+        private final long[] keys;
+        private final int[] values;
+        private final int mask;
+
+        LongIntMap(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(expected, 2) * 2 - 1) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(keys, -1);
+        }
+
+        int get(long key) {
+            for (int i = slot(key); ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                if (keys[i] < 0) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(long key, int value) {
+            int i = slot(key);
+            while (keys[i] >= 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        void remove(long key) {
+            int i = slot(key);
+            while (keys[i] != key) {
+                if (keys[i] < 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            // 把后面属于这条探测链的元素前移，保证查找不会提前遇到空槽
+            int gap = i;
+            for (int j = (gap + 1) & mask; keys[j] >= 0; j = (j + 1) & mask) {
+                int home = slot(keys[j]);
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = -1;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
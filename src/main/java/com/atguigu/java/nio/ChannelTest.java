@@ -15,9 +15,11 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 一、通道（Channel）：用于源节点与目标节点的连接，在Java nio中负责缓冲区中数据的传输，
@@ -63,6 +65,71 @@ import java.util.SortedMap;
  */
 public class ChannelTest {
 
+    // 异步读取：批量提交随机位置的读请求，相邻的请求合并为一次读取
+    @Test
+    public void test9() throws Exception {
+        long start = System.currentTimeMillis();
+
+        AsyncFile file = AsyncFile.open("1.mp4");
+        long size = file.size();
+        long[] positions = new long[10000];
+        int[] lengths = new int[10000];
+        java.util.Random random = new java.util.Random();
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = (long) (random.nextDouble() * size / 100);
+            lengths[i] = 100;
+        }
+        // 一次提交，全部完成后返回结果（与参数顺序相同）
+        List<ByteBuffer> buffers = file.readAll(positions, lengths).get();
+        System.out.println(buffers.size());
+
+        // 单个读取，完成时回调
+        CompletableFuture<ByteBuffer> future = file.read(0, 1024);
+        future.thenAccept(buffer -> System.out.println("读取了" + buffer.remaining() + "个字节")).get();
+
+        System.out.println(file); // 请求数与实际读取次数
+        file.close();
+
+        long end = System.currentTimeMillis();
+        System.out.println("耗费时间为：" + (end - start));
+    }
+
+    // 带块缓存的随机读取
+    @Test
+    public void test8() throws IOException {
+        long start = System.currentTimeMillis();
+
+        CachedFileChannel channel = CachedFileChannel.open("1.mp4");
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        long size = channel.size();
+        java.util.Random random = new java.util.Random();
+        for (int i = 0; i < 1000000; i++) {
+            // 读取文件前1%范围内的随机位置，大部分读取会命中缓存
+            buffer.clear();
+            channel.read(buffer, (long) (random.nextDouble() * size / 100));
+        }
+        System.out.println(channel); // 命中率等统计信息
+        channel.close();
+
+        long end = System.currentTimeMillis();
+        System.out.println("耗费时间为：" + (end - start));
+    }
+
+    // 文件的切分与合并（通道之间按偏移量传输，零拷贝）
+    @Test
+    public void test7() throws IOException {
+        long start = System.currentTimeMillis();
+
+        FileSplitter splitter = new FileSplitter();
+        // 按100MB切分，分片与清单文件放在parts目录中
+        splitter.split("1.mp4", "parts", 100 * 1024 * 1024);
+        // 根据清单文件校验并合并分片
+        splitter.join("parts/1.mp4" + FileSplitter.MANIFEST_SUFFIX, "2.mp4");
+
+        long end = System.currentTimeMillis();
+        System.out.println("耗费时间为：" + (end - start));
+    }
+
     // 编码解码
     @Test
     public void test6() throws IOException {
@@ -0,0 +1,565 @@
+package com.atguigu.java.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.DoublePredicate;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+
+/**
+ * 列式二进制数据文件：每个字段一列，通过内存映射文件与类型化的缓冲区视图
+ * （asIntBuffer()/asLongBuffer()/asDoubleBuffer()）直接读写，不需要解析文本，也不需要装箱
+ * <pre>
+ * 一、文件布局（小端字节序）
+ * | 头部 | 列0 | 列1 | ... |
+ * 1. 头部：magic(4) version(4) rowCount(8) columnCount(4)，
+ *    然后每列：type(1) nameLength(2) name(UTF-8) offset(8)
+ * 2. 头部与每一列的起始位置都按4KB对齐
+ * 3. 每一列按SEGMENT_SIZE字节分段映射，突破单个MappedByteBuffer 2GB的限制
+ *
+ * 二、聚合操作
+ * sum()、min()、max()、count(predicate)按CHUNK_SIZE个值切分成块，
+ * 通过ForkJoinPool并行计算，每块内部是对缓冲区的简单计数循环
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-13 10:15
+ */
+public class ColumnFile implements Closeable {
+
+    private static final int MAGIC = 0x434F4C31; // "COL1"
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 4096;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * 列的类型
+     */
+    public enum Type {
+        INT(4), LONG(8), DOUBLE(8);
+
+        private final int width;
+
+        Type(int width) {
+            this.width = width;
+        }
+
+        public int width() {
+            return width;
+        }
+    }
+
+    /**
+     * 列的定义
+     */
+    public static final class Spec {
+        private final String name;
+        private final Type type;
+
+        public Spec(String name, Type type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    public static Spec column(String name, Type type) {
+        return new Spec(name, type);
+    }
+
+    private final FileChannel channel;
+    private final boolean writable;
+    private final long rowCount;
+    private final Map<String, Column> columns = new LinkedHashMap<>();
+
+    private ColumnFile(FileChannel channel, boolean writable, long rowCount) {
+        this.channel = channel;
+        this.writable = writable;
+        this.rowCount = rowCount;
+    }
+
+    public static ColumnFile create(String path, long rowCount, Spec... specs) throws IOException {
+        return create(Paths.get(path), rowCount, specs);
+    }
+
+    /**
+     * 创建指定行数的文件，返回可写的ColumnFile，所有值初始为0
+     */
+    public static ColumnFile create(Path path, long rowCount, Spec... specs) throws IOException {
+        if (rowCount < 0) {
+            throw new IllegalArgumentException("rowCount不能为负数：" + rowCount);
+        }
+        int headerSize = 20;
+        for (Spec spec : specs) {
+            headerSize += 1 + 2 + spec.name.getBytes(StandardCharsets.UTF_8).length + 8;
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(rowCount).putInt(specs.length);
+        long offset = align(headerSize);
+        long[] offsets = new long[specs.length];
+        for (int i = 0; i < specs.length; i++) {
+            byte[] name = specs[i].name.getBytes(StandardCharsets.UTF_8);
+            offsets[i] = offset;
+            header.put((byte) specs[i].type.ordinal()).putShort((short) name.length).put(name).putLong(offset);
+            offset = align(offset + rowCount * specs[i].type.width);
+        }
+        header.flip();
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            ColumnFile file = new ColumnFile(channel, true, rowCount);
+            for (int i = 0; i < specs.length; i++) {
+                file.addColumn(specs[i].name, specs[i].type, offsets[i]);
+            }
+            return file;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static ColumnFile open(String path) throws IOException {
+        return open(Paths.get(path));
+    }
+
+    /**
+     * 以只读方式打开文件
+     */
+    public static ColumnFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            // 映射只建立虚拟地址，只有实际读到的头部页会被加载
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.remaining() < 20 || header.getInt() != MAGIC) {
+                throw new IOException("不是列式数据文件：" + path);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("不支持的版本：" + version);
+            }
+            long rowCount = header.getLong();
+            int columnCount = header.getInt();
+            ColumnFile file = new ColumnFile(channel, false, rowCount);
+            for (int i = 0; i < columnCount; i++) {
+                Type type = Type.values()[header.get()];
+                byte[] name = new byte[header.getShort() & 0xffff];
+                header.get(name);
+                file.addColumn(new String(name, StandardCharsets.UTF_8), type, header.getLong());
+            }
+            return file;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public List<String> getColumnNames() {
+        return Collections.unmodifiableList(new ArrayList<>(columns.keySet()));
+    }
+
+    public IntColumn intColumn(String name) {
+        return column(name, IntColumn.class);
+    }
+
+    public LongColumn longColumn(String name) {
+        return column(name, LongColumn.class);
+    }
+
+    public DoubleColumn doubleColumn(String name) {
+        return column(name, DoubleColumn.class);
+    }
+
+    /**
+     * 可写时把修改刷到磁盘，然后关闭通道；已映射的缓冲区在关闭后仍然有效
+     */
+    @Override
+    public void close() throws IOException {
+        if (writable) {
+            for (Column column : columns.values()) {
+                for (MappedByteBuffer segment : column.segments) {
+                    segment.force();
+                }
+            }
+        }
+        channel.close();
+    }
+
+    private <T extends Column> T column(String name, Class<T> type) {
+        Column column = columns.get(name);
+        if (column == null) {
+            throw new IllegalArgumentException("列不存在：" + name);
+        }
+        if (!type.isInstance(column)) {
+            throw new IllegalArgumentException("列" + name + "的类型是" + column.type);
+        }
+        return type.cast(column);
+    }
+
+    private void addColumn(String name, Type type, long offset) throws IOException {
+        long valuesPerSegment = SEGMENT_SIZE / type.width;
+        int count = (int) ((rowCount + valuesPerSegment - 1) / valuesPerSegment);
+        MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for (int i = 0; i < count; i++) {
+            long values = Math.min(valuesPerSegment, rowCount - i * valuesPerSegment);
+            segments[i] = channel.map(mode, offset + i * SEGMENT_SIZE, values * type.width);
+            segments[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        Column column;
+        switch (type) {
+            case INT:
+                column = new IntColumn(name, rowCount, segments);
+                break;
+            case LONG:
+                column = new LongColumn(name, rowCount, segments);
+                break;
+            default:
+                column = new DoubleColumn(name, rowCount, segments);
+                break;
+        }
+        columns.put(name, column);
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    // ---------------------------------------------------------------- 列
+
+    /**
+     * 一列数据，按段映射，每段内通过int下标访问
+     */
+    public abstract static class Column {
+        final String name;
+        final Type type;
+        final long size;
+        final MappedByteBuffer[] segments;
+        final int shift; // 每段的值个数 = 1 << shift
+
+        Column(String name, Type type, long size, MappedByteBuffer[] segments) {
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.segments = segments;
+            this.shift = Long.numberOfTrailingZeros(SEGMENT_SIZE / type.width);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        int segment(long row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("row：" + row + "，size：" + size);
+            }
+            return (int) (row >>> shift);
+        }
+
+        int index(long row) {
+            return (int) (row & ((1L << shift) - 1));
+        }
+
+        /**
+         * 把[0, size)切分成不跨段的块，在ForkJoinPool中并行计算后合并
+         */
+        <R> R aggregate(R identity, ChunkFunction<R> leaf, BinaryOperator<R> combiner) {
+            long chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            if (chunks == 0) {
+                return identity;
+            }
+            return ForkJoinPool.commonPool().invoke(new ChunkTask<>(this, 0, chunks, leaf, combiner));
+        }
+    }
+
+    /**
+     * 计算一个块：第segment段中下标[from, to)的值
+     */
+    interface ChunkFunction<R> {
+        R apply(int segment, int from, int to);
+    }
+
+    private static final class ChunkTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final Column column;
+        private final long from;
+        private final long to;
+        private final ChunkFunction<R> leaf;
+        private final BinaryOperator<R> combiner;
+
+        ChunkTask(Column column, long from, long to, ChunkFunction<R> leaf, BinaryOperator<R> combiner) {
+            this.column = column;
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from == 1) {
+                long start = from * CHUNK_SIZE;
+                long end = Math.min(start + CHUNK_SIZE, column.size);
+                int segment = (int) (start >>> column.shift);
+                return leaf.apply(segment, column.index(start), column.index(start) + (int) (end - start));
+            }
+            long mid = (from + to) >>> 1;
+            ChunkTask<R> left = new ChunkTask<>(column, from, mid, leaf, combiner);
+            left.fork();
+            R right = new ChunkTask<>(column, mid, to, leaf, combiner).compute();
+            return combiner.apply(left.join(), right);
+        }
+    }
+
+    public static final class IntColumn extends Column {
+        private final IntBuffer[] buffers;
+
+        IntColumn(String name, long size, MappedByteBuffer[] segments) {
+            super(name, Type.INT, size, segments);
+            buffers = new IntBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                buffers[i] = segments[i].asIntBuffer();
+            }
+        }
+
+        public int get(long row) {
+            return buffers[segment(row)].get(index(row));
+        }
+
+        public void set(long row, int value) {
+            buffers[segment(row)].put(index(row), value);
+        }
+
+        public long sum() {
+            return aggregate(0L, (segment, from, to) -> {
+                IntBuffer buffer = buffers[segment];
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += buffer.get(i);
+                }
+                return sum;
+            }, Long::sum);
+        }
+
+        /**
+         * @return 最小值，没有数据时返回Integer.MAX_VALUE
+         */
+        public int min() {
+            return aggregate(Integer.MAX_VALUE, (segment, from, to) -> {
+                IntBuffer buffer = buffers[segment];
+                int min = Integer.MAX_VALUE;
+                for (int i = from; i < to; i++) {
+                    min = Math.min(min, buffer.get(i));
+                }
+                return min;
+            }, Math::min);
+        }
+
+        /**
+         * @return 最大值，没有数据时返回Integer.MIN_VALUE
+         */
+        public int max() {
+            return aggregate(Integer.MIN_VALUE, (segment, from, to) -> {
+                IntBuffer buffer = buffers[segment];
+                int max = Integer.MIN_VALUE;
+                for (int i = from; i < to; i++) {
+                    max = Math.max(max, buffer.get(i));
+                }
+                return max;
+            }, Math::max);
+        }
+
+        public long count(IntPredicate predicate) {
+            return aggregate(0L, (segment, from, to) -> {
+                IntBuffer buffer = buffers[segment];
+                long count = 0;
+                for (int i = from; i < to; i++) {
+                    if (predicate.test(buffer.get(i))) {
+                        count++;
+                    }
+                }
+                return count;
+            }, Long::sum);
+        }
+    }
+
+    public static final class LongColumn extends Column {
+        private final LongBuffer[] buffers;
+
+        LongColumn(String name, long size, MappedByteBuffer[] segments) {
+            super(name, Type.LONG, size, segments);
+            buffers = new LongBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                buffers[i] = segments[i].asLongBuffer();
+            }
+        }
+
+        public long get(long row) {
+            return buffers[segment(row)].get(index(row));
+        }
+
+        public void set(long row, long value) {
+            buffers[segment(row)].put(index(row), value);
+        }
+
+        public long sum() {
+            return aggregate(0L, (segment, from, to) -> {
+                LongBuffer buffer = buffers[segment];
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += buffer.get(i);
+                }
+                return sum;
+            }, Long::sum);
+        }
+
+        /**
+         * @return 最小值，没有数据时返回Long.MAX_VALUE
+         */
+        public long min() {
+            return aggregate(Long.MAX_VALUE, (segment, from, to) -> {
+                LongBuffer buffer = buffers[segment];
+                long min = Long.MAX_VALUE;
+                for (int i = from; i < to; i++) {
+                    min = Math.min(min, buffer.get(i));
+                }
+                return min;
+            }, Math::min);
+        }
+
+        /**
+         * @return 最大值，没有数据时返回Long.MIN_VALUE
+         */
+        public long max() {
+            return aggregate(Long.MIN_VALUE, (segment, from, to) -> {
+                LongBuffer buffer = buffers[segment];
+                long max = Long.MIN_VALUE;
+                for (int i = from; i < to; i++) {
+                    max = Math.max(max, buffer.get(i));
+                }
+                return max;
+            }, Math::max);
+        }
+
+        public long count(LongPredicate predicate) {
+            return aggregate(0L, (segment, from, to) -> {
+                LongBuffer buffer = buffers[segment];
+                long count = 0;
+                for (int i = from; i < to; i++) {
+                    if (predicate.test(buffer.get(i))) {
+                        count++;
+                    }
+                }
+                return count;
+            }, Long::sum);
+        }
+    }
+
+    public static final class DoubleColumn extends Column {
+        private final DoubleBuffer[] buffers;
+
+        DoubleColumn(String name, long size, MappedByteBuffer[] segments) {
+            super(name, Type.DOUBLE, size, segments);
+            buffers = new DoubleBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                buffers[i] = segments[i].asDoubleBuffer();
+            }
+        }
+
+        public double get(long row) {
+            return buffers[segment(row)].get(index(row));
+        }
+
+        public void set(long row, double value) {
+            buffers[segment(row)].put(index(row), value);
+        }
+
+        public double sum() {
+            return aggregate(0.0, (segment, from, to) -> {
+                DoubleBuffer buffer = buffers[segment];
+                double sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += buffer.get(i);
+                }
+                return sum;
+            }, Double::sum);
+        }
+
+        /**
+         * @return 最小值，没有数据时返回Double.POSITIVE_INFINITY
+         */
+        public double min() {
+            return aggregate(Double.POSITIVE_INFINITY, (segment, from, to) -> {
+                DoubleBuffer buffer = buffers[segment];
+                double min = Double.POSITIVE_INFINITY;
+                for (int i = from; i < to; i++) {
+                    min = Math.min(min, buffer.get(i));
+                }
+                return min;
+            }, Math::min);
+        }
+
+        /**
+         * @return 最大值，没有数据时返回Double.NEGATIVE_INFINITY
+         */
+        public double max() {
+            return aggregate(Double.NEGATIVE_INFINITY, (segment, from, to) -> {
+                DoubleBuffer buffer = buffers[segment];
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = from; i < to; i++) {
+                    max = Math.max(max, buffer.get(i));
+                }
+                return max;
+            }, Math::max);
+        }
+
+        public long count(DoublePredicate predicate) {
+            return aggregate(0L, (segment, from, to) -> {
+                DoubleBuffer buffer = buffers[segment];
+                long count = 0;
+                for (int i = from; i < to; i++) {
+                    if (predicate.test(buffer.get(i))) {
+                        count++;
+                    }
+                }
+                return count;
+            }, Long::sum);
+        }
+    }
+}
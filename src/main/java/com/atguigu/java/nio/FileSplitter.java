@@ -0,0 +1,365 @@
+package com.atguigu.java.nio;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * 文件的切分与合并：通过transferTo()/transferFrom()按偏移量在通道之间传输数据，数据不经过用户空间
+ * <pre>
+ * 1. split()：把源文件按固定大小切分为多个分片文件，并生成清单文件（.manifest）
+ * 2. join()：根据清单文件把分片按偏移量写回目标文件，可先校验每个分片的CRC32
+ * 3. 每个分片由线程池并行处理，多个线程共享同一个通道，按绝对位置读写互不影响
+ *
+ * 清单文件格式（文本，UTF-8）：
+ * file=原文件名
+ * size=原文件大小
+ * partSize=分片大小
+ * part=序号,分片文件名,偏移量,长度,crc32（十六进制）
+ *
+ * 说明：计算CRC32需要读取数据，这里通过内存映射文件计算，不需要复制到堆内存；
+ * 不需要校验时可以关闭checksum，此时只有transferTo()/transferFrom()
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-12 19:30
+ */
+public class FileSplitter {
+
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    // 计算CRC32时每次映射的大小
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean checksum = true;
+    private ExecutorService executor;
+
+    public FileSplitter parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism至少为1：" + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param checksum split()时是否计算分片的CRC32，join()时是否校验
+     */
+    public FileSplitter checksum(boolean checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    /**
+     * @param executor 处理分片的线程池，由调用者负责关闭；未指定时每次split()/join()临时创建，结束后关闭
+     */
+    public FileSplitter executor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * 分片信息
+     */
+    public static final class Part {
+        private final int index;
+        private final String fileName;
+        private final long offset;
+        private final long length;
+        private final long crc; // 未计算时为-1
+
+        public Part(int index, String fileName, long offset, long length, long crc) {
+            this.index = index;
+            this.fileName = fileName;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+    }
+
+    /**
+     * 清单：原文件信息与所有分片
+     */
+    public static final class Manifest {
+        private final String fileName;
+        private final long size;
+        private final long partSize;
+        private final List<Part> parts;
+
+        public Manifest(String fileName, long size, long partSize, List<Part> parts) {
+            this.fileName = fileName;
+            this.size = size;
+            this.partSize = partSize;
+            this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getPartSize() {
+            return partSize;
+        }
+
+        public List<Part> getParts() {
+            return parts;
+        }
+
+        public void write(Path path) throws IOException {
+            try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                writer.write("file=" + fileName);
+                writer.newLine();
+                writer.write("size=" + size);
+                writer.newLine();
+                writer.write("partSize=" + partSize);
+                writer.newLine();
+                for (Part part : parts) {
+                    writer.write("part=" + part.index + "," + part.fileName + "," + part.offset + ","
+                            + part.length + "," + (part.crc < 0 ? "-" : Long.toHexString(part.crc)));
+                    writer.newLine();
+                }
+            }
+        }
+
+        public static Manifest read(Path path) throws IOException {
+            String fileName = null;
+            long size = -1;
+            long partSize = -1;
+            List<Part> parts = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int eq = line.indexOf('=');
+                    if (line.isEmpty() || line.startsWith("#") || eq < 0) {
+                        continue;
+                    }
+                    String key = line.substring(0, eq);
+                    String value = line.substring(eq + 1);
+                    switch (key) {
+                        case "file":
+                            fileName = value;
+                            break;
+                        case "size":
+                            size = Long.parseLong(value);
+                            break;
+                        case "partSize":
+                            partSize = Long.parseLong(value);
+                            break;
+                        case "part":
+                            // 文件名中可能含有逗号，从两端取其余字段
+                            int first = value.indexOf(',');
+                            int crcStart = value.lastIndexOf(',');
+                            int lengthStart = value.lastIndexOf(',', crcStart - 1);
+                            int offsetStart = value.lastIndexOf(',', lengthStart - 1);
+                            String crc = value.substring(crcStart + 1);
+                            parts.add(new Part(Integer.parseInt(value.substring(0, first)),
+                                    value.substring(first + 1, offsetStart),
+                                    Long.parseLong(value.substring(offsetStart + 1, lengthStart)),
+                                    Long.parseLong(value.substring(lengthStart + 1, crcStart)),
+                                    "-".equals(crc) ? -1 : Long.parseLong(crc, 16)));
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("清单文件格式错误：" + path, e);
+            }
+            if (fileName == null || size < 0) {
+                throw new IOException("清单文件格式错误：" + path);
+            }
+            return new Manifest(fileName, size, partSize, parts);
+        }
+    }
+
+    public Manifest split(String source, String targetDir, long partSize) throws IOException {
+        return split(Paths.get(source), Paths.get(targetDir), partSize);
+    }
+
+    /**
+     * 切分文件，分片文件名为"原文件名.part序号"，清单文件为"原文件名.manifest"，都放在targetDir中
+     */
+    public Manifest split(Path source, Path targetDir, long partSize) throws IOException {
+        if (partSize <= 0) {
+            throw new IllegalArgumentException("partSize必须大于0：" + partSize);
+        }
+        Files.createDirectories(targetDir);
+        String name = source.getFileName().toString();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            int count = (int) Math.max(1, (size + partSize - 1) / partSize);
+            List<Callable<Part>> tasks = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                final long offset = i * partSize;
+                final long length = Math.min(partSize, size - offset);
+                final String partName = String.format("%s.part%04d", name, i);
+                tasks.add(() -> {
+                    try (FileChannel out = FileChannel.open(targetDir.resolve(partName), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        long done = 0;
+                        while (done < length) {
+                            long n = in.transferTo(offset + done, length - done, out);
+                            if (n <= 0) {
+                                throw new IOException("分片传输中断（源文件被截断？）：" + source);
+                            }
+                            done += n;
+                        }
+                    }
+                    return new Part(index, partName, offset, length, checksum ? crc(in, offset, length) : -1);
+                });
+            }
+            Manifest manifest = new Manifest(name, size, partSize, runAll(tasks));
+            manifest.write(targetDir.resolve(name + MANIFEST_SUFFIX));
+            return manifest;
+        }
+    }
+
+    public void join(String manifestFile, String target) throws IOException {
+        join(Paths.get(manifestFile), Paths.get(target));
+    }
+
+    /**
+     * 合并分片，分片文件与清单文件在同一目录中
+     * <p>
+     * 清单可能来自不可信的一方：分片名不能带路径，分片必须不重叠、不遗漏地覆盖[0, size)
+     */
+    public void join(Path manifestFile, Path target) throws IOException {
+        final Manifest manifest = Manifest.read(manifestFile);
+        final Path dir = manifestFile.toAbsolutePath().getParent();
+        validate(manifest, manifestFile);
+        try (RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw")) {
+            // transferFrom()的位置大于文件大小时不会传输，先设置好目标文件的大小
+            raf.setLength(manifest.getSize());
+            final FileChannel out = raf.getChannel();
+            List<Callable<Part>> tasks = new ArrayList<>();
+            for (final Part part : manifest.getParts()) {
+                tasks.add(() -> {
+                    try (FileChannel in = FileChannel.open(dir.resolve(part.fileName), StandardOpenOption.READ)) {
+                        if (in.size() != part.length) {
+                            throw new IOException("分片大小不一致：" + part.fileName);
+                        }
+                        if (checksum && part.crc >= 0 && crc(in, 0, part.length) != part.crc) {
+                            throw new IOException("分片CRC32校验失败：" + part.fileName);
+                        }
+                        long done = 0;
+                        while (done < part.length) {
+                            long n = out.transferFrom(in, part.offset + done, part.length - done);
+                            if (n <= 0) {
+                                throw new IOException("分片传输中断：" + part.fileName);
+                            }
+                            done += n;
+                        }
+                    }
+                    return part;
+                });
+            }
+            runAll(tasks);
+            out.force(false);
+        }
+    }
+
+    private static void validate(Manifest manifest, Path manifestFile) throws IOException {
+        List<Part> parts = new ArrayList<>(manifest.getParts());
+        for (Part part : parts) {
+            String name = part.fileName;
+            // 不允许路径分隔符，只剩"."与".."本身会指向别的目录；"clip..v2.mp4"这样的名字是合法的
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0
+                    || name.indexOf(':') >= 0 || name.indexOf('\0') >= 0 || Paths.get(name).isAbsolute()) {
+                throw new IOException("清单中的分片名不合法：" + name + "（" + manifestFile + "）");
+            }
+        }
+        parts.sort(Comparator.comparingLong(Part::getOffset));
+        long expected = 0;
+        for (Part part : parts) {
+            // 空文件切分后只有一个长度为0的分片
+            if (part.offset != expected || part.length < 0 || (part.length == 0 && manifest.getSize() != 0)) {
+                throw new IOException("清单中的分片不连续或有重叠：" + part.fileName + "，偏移" + part.offset
+                        + "，应为" + expected + "（" + manifestFile + "）");
+            }
+            expected += part.length;
+        }
+        if (expected != manifest.getSize()) {
+            throw new IOException("清单中的分片总长度" + expected + "与文件大小" + manifest.getSize()
+                    + "不一致（" + manifestFile + "）");
+        }
+    }
+
+    private static long crc(FileChannel channel, long offset, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        long done = 0;
+        while (done < length) {
+            long n = Math.min(MAP_WINDOW, length - done);
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, offset + done, n));
+            done += n;
+        }
+        return crc.getValue();
+    }
+
+    private <T> List<T> runAll(List<Callable<T>> tasks) throws IOException {
+        ExecutorService pool = executor != null ? executor
+                : Executors.newFixedThreadPool(Math.min(parallelism, Math.max(tasks.size(), 1)));
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("任务被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (pool != executor) {
+                pool.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,834 @@
+package com.atguigu.java.nio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * 小文件打包存储：把大量小文件追加到一个大文件中，通过排序后内存映射的索引按名称查找
+ * <pre>
+ * 一、文件
+ * 1. 数据文件（basePath.N.pack）：只追加的记录 = [int nameLen][int dataLen][int crc][int 保留][name(UTF-8)][data]，按8字节对齐，
+ *    dataLen为-1表示删除，nameLen为0表示填充；crc覆盖nameLen、dataLen、名称与数据（填充记录只覆盖两个长度）；
+ *    记录不会跨越1GB的段边界，每段单独映射；第一条记录是填充记录，保留字段为版本号，内容为数据文件的generation；
+ *    文件按容量成倍预先扩展，末尾可能是未使用的0，映射时覆盖整个容量，追加后不必每次重新映射
+ * 2. 索引文件（basePath.N.idx）：magic(4) version(4) count(4) dataSize(8) generation(8) 保留(4)，
+ *    然后是按名称字节序排序的定长条目[long offset][int length][int nameOffset][int nameLength][int 保留]，
+ *    最后是名称区；generation与数据文件不一致时，打开时重新扫描整个数据文件重建索引
+ * 3. 不覆盖已有的文件：每次写索引与repack()都先写临时文件（.tmp），再重命名为编号更大的新文件；
+ *    打开时使用编号最大的数据文件，以及generation与之一致、编号最大的索引文件，其余的删除
+ *
+ * 二、操作
+ * 1. append()/appendAll()：聚集写入（gathering write）一次写出多条记录的头部、名称与数据
+ * 2. get()：先查内存中尚未写入索引的条目，再在映射的索引中二分查找，返回数据文件映射上的只读切片（零拷贝）
+ * 3. transferTo()：通过FileChannel.transferTo()把数据直接发送到目标通道
+ * 4. flushIndex()：把内存中的条目合并进索引文件；打开时从索引记录的dataSize向后扫描，找回未写入索引的记录，
+ *    遇到crc不一致（写了一半或预先扩展的0）的记录时截断
+ * 5. repack()/repackAsync()：只保留有效记录重写数据文件与索引，期间读操作不受影响
+ *
+ * 说明：写操作由一把锁串行化，读操作不加锁；Windows下被映射的文件不能被替换、截断或删除，
+ * 因此从不替换文件，旧文件在映射被回收之后的某次flushIndex()、repack()或打开时删除
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-14 9:30
+ */
+public class PackFile implements Closeable {
+
+    private static final int MAGIC = 0x50414B31; // "PAK1"
+    private static final int VERSION = 2;
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int GENERATION_RECORD_SIZE = RECORD_HEADER_SIZE + 8;
+    private static final int ENTRY_SIZE = 24;
+    private static final int DELETED = -1;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    // 数据文件每次至少扩展的字节数
+    private static final long MIN_GROWTH = 16L * 1024 * 1024;
+    private static final String DATA_SUFFIX = ".pack";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final Pattern fileName;
+    private final String baseName;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // 以下字段在写锁内修改：当前的数据文件与索引文件、已使用的最大编号
+    private Path dataPath;
+    private Path indexPath;
+    private long lastNumber;
+    private final List<FileChannel> retired = new ArrayList<>();
+
+    private volatile State state;
+
+    /**
+     * 数据文件、索引与未写入索引的条目的快照，repack()与flushIndex()时整体替换
+     */
+    private static final class State {
+        final FileChannel data;
+        final ByteBuffer index;
+        final int count;
+        final long indexedSize;
+        final long generation;
+        final ConcurrentSkipListMap<String, long[]> pending = new ConcurrentSkipListMap<>();
+        volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+        // 有效数据的末尾
+        volatile long size;
+        // 数据文件的实际大小，size之后是预先扩展的0
+        volatile long capacity;
+
+        State(FileChannel data, ByteBuffer index, long size, long capacity) {
+            this.data = data;
+            this.index = index;
+            this.count = index.getInt(8);
+            this.indexedSize = index.getLong(12);
+            this.generation = index.getLong(20);
+            this.size = size;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return 数据所在段的映射，覆盖到end为止；映射到当前容量，只有容量扩展后才需要重新映射
+         */
+        ByteBuffer segment(long offset, long end) throws IOException {
+            int i = (int) (offset / SEGMENT_SIZE);
+            MappedByteBuffer[] current = segments;
+            if (i < current.length && current[i] != null && i * SEGMENT_SIZE + current[i].capacity() >= end) {
+                return current[i];
+            }
+            synchronized (this) {
+                current = segments;
+                if (i >= current.length) {
+                    MappedByteBuffer[] grown = new MappedByteBuffer[i + 1];
+                    System.arraycopy(current, 0, grown, 0, current.length);
+                    current = grown;
+                }
+                long start = i * SEGMENT_SIZE;
+                if (current[i] == null || start + current[i].capacity() < end) {
+                    // 不能映射到文件末尾之后：那样会在写锁之外扩展文件，与追加的写入竞争
+                    current[i] = data.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, capacity - start));
+                }
+                segments = current;
+                return current[i];
+            }
+        }
+    }
+
+    public PackFile(String basePath) throws IOException {
+        this(Paths.get(basePath));
+    }
+
+    /**
+     * @param basePath 数据文件为basePath.N.pack，索引文件为basePath.N.idx，N为递增的编号
+     */
+    public PackFile(Path basePath) throws IOException {
+        this.directory = basePath.toAbsolutePath().getParent();
+        this.baseName = basePath.getFileName().toString();
+        this.fileName = fileNamePattern(baseName);
+        TreeMap<Long, Path> dataFiles = list(DATA_SUFFIX);
+        TreeMap<Long, Path> indexFiles = list(INDEX_SUFFIX);
+        this.dataPath = dataFiles.isEmpty() ? nextFile(DATA_SUFFIX) : dataFiles.lastEntry().getValue();
+        FileChannel data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long generation = data.size() == 0 ? writeGeneration(data) : readGeneration(data);
+            ByteBuffer index = null;
+            for (Path candidate : indexFiles.descendingMap().values()) {
+                ByteBuffer mapped = mapIndex(candidate);
+                if (mapped.getLong(20) == generation) {
+                    index = mapped;
+                    indexPath = candidate;
+                    break;
+                }
+            }
+            if (index == null) {
+                // 索引不存在或不属于这个数据文件，从头扫描重建
+                indexPath = commitIndex(Collections.<Entry>emptyList(), 0, generation);
+                index = mapIndex(indexPath);
+            }
+            State s = new State(data, index, data.size(), data.size());
+            recover(s);
+            this.state = s;
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+        deleteStale();
+    }
+
+    /**
+     * 删除basePath的所有数据文件与索引文件，PackFile必须已经关闭
+     */
+    public static void delete(Path basePath) throws IOException {
+        Pattern pattern = fileNamePattern(basePath.getFileName().toString());
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(basePath.toAbsolutePath().getParent())) {
+            for (Path file : files) {
+                if (pattern.matcher(file.getFileName().toString()).matches()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    public void append(String name, byte[] data) throws IOException {
+        append(name, ByteBuffer.wrap(data));
+    }
+
+    public void append(String name, ByteBuffer data) throws IOException {
+        appendAll(Collections.singletonMap(name, data));
+    }
+
+    /**
+     * 批量追加，同名的文件以最后一次追加的为准
+     */
+    public void appendAll(Map<String, ByteBuffer> files) throws IOException {
+        writeLock.lock();
+        try {
+            State s = state;
+            List<ByteBuffer> buffers = new ArrayList<>(files.size() * 3);
+            Map<String, long[]> added = new LinkedHashMap<>();
+            long position = s.size;
+            for (Map.Entry<String, ByteBuffer> file : files.entrySet()) {
+                byte[] name = encodeName(file.getKey());
+                ByteBuffer data = file.getValue().duplicate();
+                int length = data.remaining();
+                long recordSize = align((long) RECORD_HEADER_SIZE + name.length + length);
+                if (recordSize > SEGMENT_SIZE) {
+                    throw new IllegalArgumentException("文件太大，不适合打包存储：" + file.getKey());
+                }
+                position = pad(buffers, position, recordSize);
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + name.length).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(name.length).putInt(length).putInt(crc(name, data.duplicate())).putInt(0).put(name).flip();
+                buffers.add(header);
+                buffers.add(data);
+                buffers.add(ByteBuffer.allocate((int) (recordSize - RECORD_HEADER_SIZE - name.length - length)));
+                added.put(file.getKey(), new long[]{position + RECORD_HEADER_SIZE + name.length, length});
+                position += recordSize;
+            }
+            write(s, buffers);
+            s.size = position;
+            s.pending.putAll(added);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 删除文件，空间在repack()时回收
+     *
+     * @return 文件是否存在
+     */
+    public boolean remove(String name) throws IOException {
+        writeLock.lock();
+        try {
+            State s = state;
+            if (lookup(s, name) == null) {
+                return false;
+            }
+            byte[] bytes = encodeName(name);
+            int recordSize = (int) align((long) RECORD_HEADER_SIZE + bytes.length);
+            List<ByteBuffer> buffers = new ArrayList<>();
+            long position = pad(buffers, s.size, recordSize);
+            ByteBuffer header = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(bytes.length).putInt(DELETED).putInt(crc(bytes, null)).putInt(0).put(bytes).clear();
+            buffers.add(header);
+            write(s, buffers);
+            s.size = position + recordSize;
+            s.pending.put(name, new long[]{position, DELETED});
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return 数据文件映射上的只读切片，不复制数据；文件不存在时返回null
+     */
+    public ByteBuffer get(String name) throws IOException {
+        State s = state;
+        long[] location = lookup(s, name);
+        if (location == null) {
+            return null;
+        }
+        long offset = location[0];
+        int length = (int) location[1];
+        ByteBuffer segment = s.segment(offset, offset + length).duplicate();
+        int start = (int) (offset % SEGMENT_SIZE);
+        segment.position(start).limit(start + length);
+        return segment.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 通过transferTo()把文件数据发送到目标通道
+     *
+     * @param target 必须是阻塞模式的通道：非阻塞通道写不进去时transferTo()返回0，只能忙等
+     * @return 发送的字节数，文件不存在时返回-1
+     */
+    public long transferTo(String name, WritableByteChannel target) throws IOException {
+        if (target instanceof SelectableChannel && !((SelectableChannel) target).isBlocking()) {
+            throw new IllegalArgumentException("目标通道必须是阻塞模式");
+        }
+        State s = state;
+        long[] location = lookup(s, name);
+        if (location == null) {
+            return -1;
+        }
+        long done = 0;
+        while (done < location[1]) {
+            long n = s.data.transferTo(location[0] + done, location[1] - done, target);
+            if (n <= 0) {
+                throw new IOException("数据传输中断（数据文件被截断？）：" + name);
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    public boolean contains(String name) {
+        return lookup(state, name) != null;
+    }
+
+    /**
+     * @return 有效文件的数量
+     */
+    public int size() {
+        writeLock.lock();
+        try {
+            return collect(state).size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 把内存中的条目合并进索引文件
+     */
+    public void flushIndex() throws IOException {
+        writeLock.lock();
+        try {
+            State s = state;
+            if (s.pending.isEmpty()) {
+                return;
+            }
+            s.data.force(false);
+            Path path = commitIndex(collect(s), s.size, s.generation);
+            State next = new State(s.data, mapIndex(path), s.size, s.capacity);
+            next.segments = s.segments;
+            state = next;
+            indexPath = path;
+            deleteStale();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 重写数据文件，只保留有效的记录，按名称排序后依次写入
+     */
+    public void repack() throws IOException {
+        writeLock.lock();
+        try {
+            State s = state;
+            List<Entry> entries = collect(s);
+            Path newData = nextFile(DATA_SUFFIX);
+            Path tmpData = newData.resolveSibling(newData.getFileName() + TMP_SUFFIX);
+            List<Entry> moved = new ArrayList<>(entries.size());
+            long generation;
+            long position = GENERATION_RECORD_SIZE;
+            try (FileChannel out = FileChannel.open(tmpData, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                generation = writeGeneration(out);
+                List<ByteBuffer> buffers = new ArrayList<>();
+                for (Entry entry : entries) {
+                    long recordSize = align((long) RECORD_HEADER_SIZE + entry.name.length + entry.length);
+                    position = pad(buffers, position, recordSize);
+                    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + entry.name.length)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    // 名称与数据不变，直接沿用原记录的crc
+                    int crc = readInt(s.data, entry.offset - entry.name.length - RECORD_HEADER_SIZE + 8);
+                    header.putInt(entry.name.length).putInt(entry.length).putInt(crc).putInt(0).put(entry.name).flip();
+                    buffers.add(header);
+                    writeAll(out, buffers);
+                    // 通道之间直接传输数据；out是阻塞的文件通道，返回0只能是数据文件被截断
+                    long done = 0;
+                    while (done < entry.length) {
+                        long n = s.data.transferTo(entry.offset + done, entry.length - done, out);
+                        if (n <= 0) {
+                            throw new IOException("数据传输中断（数据文件被截断？）：" + s.data);
+                        }
+                        done += n;
+                    }
+                    buffers.add(ByteBuffer.allocate((int) (recordSize - RECORD_HEADER_SIZE - entry.name.length - entry.length)));
+                    moved.add(new Entry(entry.name, position + RECORD_HEADER_SIZE + entry.name.length, entry.length));
+                    position += recordSize;
+                }
+                writeAll(out, buffers);
+                out.force(true);
+            }
+
+            // 先提交数据文件，再提交索引；两者之间崩溃时，打开时使用新的数据文件，找不到generation一致的索引，重新扫描
+            Files.move(tmpData, newData, StandardCopyOption.ATOMIC_MOVE);
+            Path newIndex = commitIndex(moved, position, generation);
+            FileChannel data = FileChannel.open(newData, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            State next = new State(data, mapIndex(newIndex), data.size(), data.size());
+            // 旧通道可能正被transferTo()使用，关闭PackFile时再关闭
+            retired.add(s.data);
+            state = next;
+            dataPath = newData;
+            indexPath = newIndex;
+            deleteStale();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 在指定的线程池中执行repack()
+     */
+    public CompletableFuture<Void> repackAsync(Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                repack();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            flushIndex();
+            // 去掉预先扩展的部分；Windows下仍被映射的文件不能截断，留给下次打开时的recover()
+            State s = state;
+            if (s.capacity > s.size) {
+                try {
+                    s.data.truncate(s.size);
+                } catch (IOException e) {
+                    // 末尾的0在下次打开时截断
+                }
+            }
+            s.data.close();
+            for (FileChannel channel : retired) {
+                channel.close();
+            }
+            retired.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- 查找
+
+    /**
+     * @return {数据偏移量, 长度}，不存在或已删除时返回null
+     */
+    private static long[] lookup(State s, String name) {
+        long[] location = s.pending.get(name);
+        if (location != null) {
+            return location[1] == DELETED ? null : location;
+        }
+        int i = search(s, encodeName(name));
+        if (i < 0) {
+            return null;
+        }
+        int base = INDEX_HEADER_SIZE + i * ENTRY_SIZE;
+        return new long[]{s.index.getLong(base), s.index.getInt(base + 8)};
+    }
+
+    // 在排序的索引条目中二分查找
+    private static int search(State s, byte[] name) {
+        int low = 0;
+        int high = s.count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compareName(s.index, INDEX_HEADER_SIZE + mid * ENTRY_SIZE, name);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int compareName(ByteBuffer index, int entry, byte[] name) {
+        int offset = index.getInt(entry + 12);
+        int length = index.getInt(entry + 16);
+        int n = Math.min(length, name.length);
+        for (int i = 0; i < n; i++) {
+            int c = (index.get(offset + i) & 0xff) - (name[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - name.length;
+    }
+
+    /**
+     * 索引中的条目与内存中的条目合并后，按名称字节序排序的有效条目
+     */
+    private static List<Entry> collect(State s) {
+        List<Entry> entries = new ArrayList<>(s.count + s.pending.size());
+        for (int i = 0; i < s.count; i++) {
+            int base = INDEX_HEADER_SIZE + i * ENTRY_SIZE;
+            byte[] name = new byte[s.index.getInt(base + 16)];
+            ByteBuffer dup = s.index.duplicate();
+            dup.position(s.index.getInt(base + 12));
+            dup.get(name);
+            if (!s.pending.containsKey(new String(name, StandardCharsets.UTF_8))) {
+                entries.add(new Entry(name, s.index.getLong(base), s.index.getInt(base + 8)));
+            }
+        }
+        for (Map.Entry<String, long[]> e : s.pending.entrySet()) {
+            if (e.getValue()[1] != DELETED) {
+                entries.add(new Entry(encodeName(e.getKey()), e.getValue()[0], (int) e.getValue()[1]));
+            }
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final byte[] name;
+        final long offset;
+        final int length;
+
+        Entry(byte[] name, long offset, int length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int n = Math.min(name.length, o.name.length);
+            for (int i = 0; i < n; i++) {
+                int c = (name[i] & 0xff) - (o.name[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return name.length - o.name.length;
+        }
+    }
+
+    // ---------------------------------------------------------------- 文件
+
+    // basePath.N.pack、basePath.N.idx以及它们的临时文件
+    private static Pattern fileNamePattern(String baseName) {
+        return Pattern.compile(Pattern.quote(baseName) + "\\.(\\d{1,18})(\\.pack|\\.idx)(\\.tmp)?");
+    }
+
+    /**
+     * @return 编号 -> 已提交的文件（不包括临时文件）；临时文件的编号也计入lastNumber，不再使用
+     */
+    private TreeMap<Long, Path> list(String suffix) throws IOException {
+        TreeMap<Long, Path> result = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Matcher matcher = fileName.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    long number = Long.parseLong(matcher.group(1));
+                    lastNumber = Math.max(lastNumber, number);
+                    if (matcher.group(2).equals(suffix) && matcher.group(3) == null) {
+                        result.put(number, file);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private Path nextFile(String suffix) {
+        return directory.resolve(baseName + "." + ++lastNumber + suffix);
+    }
+
+    // 写入临时文件后重命名为新编号的索引文件，目标文件不存在，不需要替换
+    private Path commitIndex(List<Entry> entries, long dataSize, long generation) throws IOException {
+        Path path = nextFile(INDEX_SUFFIX);
+        Path tmp = path.resolveSibling(path.getFileName() + TMP_SUFFIX);
+        writeIndex(tmp, entries, dataSize, generation);
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+        return path;
+    }
+
+    // 删除当前文件以外的数据文件、索引与临时文件；Windows下仍被映射的文件删不掉，留到以后再删
+    private void deleteStale() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Path name = file.getFileName();
+                if (fileName.matcher(name.toString()).matches() && !name.equals(dataPath.getFileName())
+                        && !name.equals(indexPath.getFileName())) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // 仍被映射
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // 旧文件只占用磁盘空间，不影响正确性
+        }
+    }
+
+    // ---------------------------------------------------------------- 文件格式
+
+    private static void writeIndex(Path path, List<Entry> entries, long dataSize, long generation)
+            throws IOException {
+        long namesSize = 0;
+        for (Entry entry : entries) {
+            namesSize += entry.name.length;
+        }
+        long size = INDEX_HEADER_SIZE + (long) entries.size() * ENTRY_SIZE + namesSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("索引超过2GB，请拆分为多个PackFile");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putLong(dataSize).putLong(generation).putInt(0);
+        int nameOffset = INDEX_HEADER_SIZE + entries.size() * ENTRY_SIZE;
+        for (Entry entry : entries) {
+            buffer.putLong(entry.offset).putInt(entry.length).putInt(nameOffset).putInt(entry.name.length).putInt(0);
+            nameOffset += entry.name.length;
+        }
+        for (Entry entry : entries) {
+            buffer.put(entry.name);
+        }
+        buffer.flip();
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+    }
+
+    private static ByteBuffer mapIndex(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (index.capacity() < INDEX_HEADER_SIZE || index.getInt(0) != MAGIC) {
+                throw new IOException("不是PackFile索引文件：" + path);
+            }
+            if (index.getInt(4) != VERSION) {
+                throw new IOException("不支持的版本：" + index.getInt(4));
+            }
+            return index;
+        }
+    }
+
+    // 新数据文件的第一条记录：填充记录，保留字段为版本号，内容为随机的generation
+    private static long writeGeneration(FileChannel channel) throws IOException {
+        long generation = new SecureRandom().nextLong();
+        ByteBuffer record = ByteBuffer.allocate(GENERATION_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(0).putInt(8).putInt(crc(0, 8)).putInt(VERSION).putLong(generation).flip();
+        while (record.hasRemaining()) {
+            channel.write(record, record.position());
+        }
+        channel.position(GENERATION_RECORD_SIZE);
+        return generation;
+    }
+
+    private static long readGeneration(FileChannel channel) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(GENERATION_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (record.hasRemaining() && channel.read(record, record.position()) >= 0) {
+            // 读满记录
+        }
+        if (record.position() < GENERATION_RECORD_SIZE || record.getInt(0) != 0 || record.getInt(4) != 8
+                || record.getInt(8) != crc(0, 8)) {
+            throw new IOException("不是PackFile数据文件");
+        }
+        if (record.getInt(12) != VERSION) {
+            throw new IOException("不支持的版本：" + record.getInt(12));
+        }
+        return record.getLong(16);
+    }
+
+    /**
+     * 扫描索引之后追加的记录，放入内存中的条目；遇到不完整或crc不一致的记录时截断数据文件
+     */
+    private static void recover(State s) throws IOException {
+        long position = s.indexedSize;
+        long size = s.data.size();
+        if (position > size) {
+            throw new IOException("索引与数据文件不匹配");
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(s.data, header, position);
+            int nameLength = header.getInt(0);
+            int length = header.getInt(4);
+            long recordSize = align(RECORD_HEADER_SIZE + (long) nameLength + Math.max(length, 0));
+            if (nameLength < 0 || nameLength > 0xffff || length < DELETED || position + recordSize > size) {
+                break;
+            }
+            // 校验crc：名称与数据只有一部分写入文件时（包括预先扩展的0），crc不一致
+            crc.reset();
+            crc.update(header.array(), 0, 8);
+            byte[] name = new byte[nameLength];
+            if (nameLength > 0) {
+                readFully(s.data, ByteBuffer.wrap(name), position + RECORD_HEADER_SIZE);
+                crc.update(name);
+                long dataStart = position + RECORD_HEADER_SIZE + nameLength;
+                for (long done = 0; done < Math.max(length, 0); ) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), length - done));
+                    readFully(s.data, buffer, dataStart + done);
+                    crc.update(buffer.array(), 0, buffer.position());
+                    done += buffer.position();
+                }
+            }
+            if ((int) crc.getValue() != header.getInt(8)) {
+                break;
+            }
+            if (nameLength > 0) {
+                String key = new String(name, StandardCharsets.UTF_8);
+                s.pending.put(key, new long[]{position + RECORD_HEADER_SIZE + nameLength, length});
+            }
+            position += recordSize;
+        }
+        if (position < size) {
+            s.data.truncate(position);
+        }
+        s.size = position;
+        s.capacity = position;
+    }
+
+    // 读满buffer的剩余部分
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new EOFException("数据文件被截断");
+            }
+        }
+    }
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, position);
+        return buffer.getInt(0);
+    }
+
+    // 记录的crc：两个长度、名称与数据；data为null表示没有数据（删除记录）
+    private static int crc(byte[] name, ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(lengths(name.length, data == null ? DELETED : data.remaining()));
+        crc.update(name);
+        if (data != null) {
+            crc.update(data);
+        }
+        return (int) crc.getValue();
+    }
+
+    // 填充记录的crc：只覆盖两个长度
+    private static int crc(int nameLength, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(lengths(nameLength, length));
+        return (int) crc.getValue();
+    }
+
+    private static byte[] lengths(int nameLength, int length) {
+        byte[] bytes = new byte[8];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(nameLength).putInt(length);
+        return bytes;
+    }
+
+    // 记录不能跨越段边界，放不下时用填充记录（nameLen为0）补齐到下一段
+    private static long pad(List<ByteBuffer> buffers, long position, long recordSize) {
+        long remaining = SEGMENT_SIZE - position % SEGMENT_SIZE;
+        if (recordSize <= remaining) {
+            return position;
+        }
+        ByteBuffer filler = ByteBuffer.allocate((int) remaining).order(ByteOrder.LITTLE_ENDIAN);
+        int length = (int) remaining - RECORD_HEADER_SIZE;
+        filler.putInt(0).putInt(length).putInt(crc(0, length)).putInt(0).clear();
+        buffers.add(filler);
+        return position + remaining;
+    }
+
+    private static void write(State s, List<ByteBuffer> buffers) throws IOException {
+        long end = s.size;
+        for (ByteBuffer buffer : buffers) {
+            end += buffer.remaining();
+        }
+        ensureCapacity(s, end);
+        s.data.position(s.size);
+        writeAll(s.data, buffers);
+    }
+
+    /**
+     * 容量不够时成倍扩展数据文件（在末尾写一个字节，中间是稀疏的0），只在写锁内调用；
+     * 扩展后get()在下一次访问时把映射延长到新的容量，不会每次追加后都重新映射
+     */
+    private static void ensureCapacity(State s, long end) throws IOException {
+        if (end <= s.capacity) {
+            return;
+        }
+        long capacity = Math.max(end, s.capacity + Math.max(s.capacity, MIN_GROWTH));
+        // 不超过end所在段的末尾，避免后面的段有无用的映射
+        long segmentEnd = ((end - 1) / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        capacity = Math.min(capacity, Math.max(end, segmentEnd));
+        s.data.write(ByteBuffer.allocate(1), capacity - 1);
+        s.capacity = capacity;
+    }
+
+    // 聚集写入
+    private static void writeAll(FileChannel channel, List<ByteBuffer> buffers) throws IOException {
+        ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : array) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(array);
+        }
+        buffers.clear();
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static byte[] encodeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || bytes.length > 0xffff) {
+            throw new IllegalArgumentException("名称长度必须在1到65535字节之间：" + name);
+        }
+        return bytes;
+    }
+}
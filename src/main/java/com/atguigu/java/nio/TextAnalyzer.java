@@ -0,0 +1,548 @@
+package com.atguigu.java.nio;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 并行文本统计：词频与字符直方图
+ * <pre>
+ * 1. 把文件按chunkSize切分，切分点向后移到第一个空白字节（<= 0x20）之后；
+ *    UTF-8、GBK、GB18030等编码中，多字节字符的任何一个字节都大于0x20（UTF-8的都不小于0x80，GBK的第二个字节不小于0x40，
+ *    GB18030四字节字符的第二、四个字节是0x30~0x39），所以切在空白字节之后既不会切断多字节字符，也不会切断单词
+ * 2. 每块单独映射（MappedByteBuffer），在ForkJoinPool中并行解码（CharsetDecoder）与分词
+ * 3. 每个工作线程一份计数表：单词按字符存放在char[]中的开放寻址表，字符按码点计数的long[]，都不装箱
+ * 4. 所有块处理完后合并各线程的计数表
+ *
+ * 分词规则：连续的字母或数字为一个单词（默认转为小写），每个汉字单独作为一个单词
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-15 10:20
+ */
+public class TextAnalyzer {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final int DECODE_BUFFER_SIZE = 64 * 1024;
+
+    private final Charset charset;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean lowerCase = true;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    public TextAnalyzer() {
+        this(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param charset 文件的编码，要求空白与控制字符（<= 0x20）编码为单个相同的字节，例如UTF-8、GBK、GB18030
+     */
+    public TextAnalyzer(Charset charset) {
+        if (!Arrays.equals(" \n".getBytes(charset), new byte[]{' ', '\n'})) {
+            throw new IllegalArgumentException("不支持的编码：" + charset);
+        }
+        this.charset = charset;
+    }
+
+    public TextAnalyzer chunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize必须大于0：" + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public TextAnalyzer lowerCase(boolean lowerCase) {
+        this.lowerCase = lowerCase;
+        return this;
+    }
+
+    public TextAnalyzer pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public Result analyze(String path) throws IOException {
+        return analyze(Paths.get(path));
+    }
+
+    public Result analyze(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long[] bounds = split(channel);
+            // 每个线程第一次处理块时创建自己的计数表；只在这次调用中有效，不像ThreadLocal那样留在池中的线程上
+            Map<Thread, Counts> counters = new ConcurrentHashMap<>();
+            try {
+                pool.invoke(new ChunkAction(channel, bounds, 0, bounds.length - 1, counters));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Counts result = new Counts();
+            for (Counts counts : counters.values()) {
+                result.merge(counts);
+            }
+            return new Result(result, lowerCase);
+        }
+    }
+
+    /**
+     * @return 切分点，第i块为[bounds[i], bounds[i + 1])
+     */
+    private long[] split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long next = chunkSize;
+        while (next < size) {
+            long position = next;
+            long bound = size;
+            scan:
+            while (position < size) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if ((buffer.get(i) & 0xff) <= 0x20) {
+                        bound = position + i + 1;
+                        break scan;
+                    }
+                }
+                position += n;
+            }
+            if (bound >= size) {
+                break;
+            }
+            if (bound - bounds.get(bounds.size() - 1) > Integer.MAX_VALUE) {
+                throw new IOException("超过2GB的内容中没有空白字符，无法切分");
+            }
+            bounds.add(bound);
+            next = bound + chunkSize;
+        }
+        if (size - bounds.get(bounds.size() - 1) > Integer.MAX_VALUE) {
+            throw new IOException("超过2GB的内容中没有空白字符，无法切分");
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private final class ChunkAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final Map<Thread, Counts> counters;
+
+        ChunkAction(FileChannel channel, long[] bounds, int from, int to, Map<Thread, Counts> counters) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.counters = counters;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkAction(channel, bounds, from, mid, counters),
+                        new ChunkAction(channel, bounds, mid, to, counters));
+                return;
+            }
+            long start = bounds[from];
+            long length = bounds[from + 1] - start;
+            if (length == 0) {
+                return;
+            }
+            try {
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                analyzeChunk(bytes, counters.computeIfAbsent(Thread.currentThread(), t -> new Counts()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // 解码一块并分词，单词在块内结束（块以空白结尾或是文件末尾）
+    private void analyzeChunk(ByteBuffer bytes, Counts counts) {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(DECODE_BUFFER_SIZE);
+        Tokenizer tokenizer = new Tokenizer(counts);
+        while (true) {
+            CoderResult result = decoder.decode(bytes, chars, true);
+            chars.flip();
+            tokenizer.accept(chars);
+            chars.clear();
+            if (result.isUnderflow()) {
+                break;
+            }
+        }
+        decoder.flush(chars);
+        chars.flip();
+        tokenizer.accept(chars);
+        tokenizer.end();
+    }
+
+    /**
+     * 逐个码点统计字符，并切分单词；代理对与单词可以跨越多次accept()
+     */
+    private final class Tokenizer {
+        private final Counts counts;
+        private char[] token = new char[64];
+        private int tokenLength;
+        private char high; // 等待低代理项的高代理项
+
+        Tokenizer(Counts counts) {
+            this.counts = counts;
+        }
+
+        void accept(CharBuffer chars) {
+            while (chars.hasRemaining()) {
+                char c = chars.get();
+                int codePoint;
+                if (high != 0) {
+                    if (Character.isLowSurrogate(c)) {
+                        codePoint = Character.toCodePoint(high, c);
+                        high = 0;
+                    } else {
+                        codePoint = high;
+                        high = 0;
+                        chars.position(chars.position() - 1);
+                    }
+                } else if (Character.isHighSurrogate(c)) {
+                    high = c;
+                    continue;
+                } else {
+                    codePoint = c;
+                }
+                codePoint(codePoint);
+            }
+        }
+
+        void end() {
+            if (high != 0) {
+                codePoint(high);
+                high = 0;
+            }
+            endToken();
+        }
+
+        private void codePoint(int codePoint) {
+            counts.addChar(codePoint);
+            if (codePoint >= 0x2E80 && Character.UnicodeScript.of(codePoint) == Character.UnicodeScript.HAN) {
+                endToken();
+                append(codePoint);
+                endToken();
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                append(lowerCase ? Character.toLowerCase(codePoint) : codePoint);
+            } else {
+                endToken();
+            }
+        }
+
+        private void append(int codePoint) {
+            if (tokenLength + 2 > token.length) {
+                token = Arrays.copyOf(token, token.length * 2);
+            }
+            tokenLength += Character.toChars(codePoint, token, tokenLength);
+        }
+
+        private void endToken() {
+            if (tokenLength > 0) {
+                counts.tokens.add(token, 0, tokenLength, 1);
+                counts.totalTokens++;
+                tokenLength = 0;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- 计数表
+
+    /**
+     * 一个线程的计数：BMP字符直接用数组计数，增补字符与单词用开放寻址表
+     */
+    private static final class Counts {
+        final long[] bmp = new long[65536];
+        final TokenCounter supplementary = new TokenCounter();
+        final TokenCounter tokens = new TokenCounter();
+        long totalChars;
+        long totalTokens;
+
+        void addChar(int codePoint) {
+            totalChars++;
+            if (codePoint < bmp.length) {
+                bmp[codePoint]++;
+            } else {
+                supplementary.add(Character.toChars(codePoint), 0, 2, 1);
+            }
+        }
+
+        void merge(Counts other) {
+            for (int i = 0; i < bmp.length; i++) {
+                bmp[i] += other.bmp[i];
+            }
+            supplementary.merge(other.supplementary);
+            tokens.merge(other.tokens);
+            totalChars += other.totalChars;
+            totalTokens += other.totalTokens;
+        }
+    }
+
+    /**
+     * 字符序列到计数的开放寻址哈希表，键的字符连续存放在arena中，不为每个单词创建String
+     */
+    private static final class TokenCounter {
+        private char[] arena = new char[4096];
+        private int arenaLength;
+        private int[] offsets = new int[1024];
+        private int[] lengths = new int[1024];
+        private int[] hashes = new int[1024];
+        private long[] counts = new long[1024];
+        private int[] table = newTable(2048); // 槽中存放条目下标，-1为空
+        private int size;
+
+        void add(char[] chars, int offset, int length, long delta) {
+            int hash = hash(chars, offset, length);
+            int mask = table.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int entry = table[slot];
+                if (entry < 0) {
+                    table[slot] = insert(chars, offset, length, hash, delta);
+                    if (size * 2 > table.length) {
+                        rehash();
+                    }
+                    return;
+                }
+                if (hashes[entry] == hash && equals(entry, chars, offset, length)) {
+                    counts[entry] += delta;
+                    return;
+                }
+            }
+        }
+
+        long get(CharSequence key) {
+            char[] chars = key.toString().toCharArray();
+            int hash = hash(chars, 0, chars.length);
+            int mask = table.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int entry = table[slot];
+                if (entry < 0) {
+                    return 0;
+                }
+                if (hashes[entry] == hash && equals(entry, chars, 0, chars.length)) {
+                    return counts[entry];
+                }
+            }
+        }
+
+        void merge(TokenCounter other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.arena, other.offsets[i], other.lengths[i], other.counts[i]);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        String key(int entry) {
+            return new String(arena, offsets[entry], lengths[entry]);
+        }
+
+        long count(int entry) {
+            return counts[entry];
+        }
+
+        private int insert(char[] chars, int offset, int length, int hash, long delta) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            if (arenaLength + length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+            }
+            System.arraycopy(chars, offset, arena, arenaLength, length);
+            offsets[size] = arenaLength;
+            lengths[size] = length;
+            hashes[size] = hash;
+            counts[size] = delta;
+            arenaLength += length;
+            return size++;
+        }
+
+        private void rehash() {
+            table = newTable(table.length * 2);
+            int mask = table.length - 1;
+            for (int entry = 0; entry < size; entry++) {
+                int slot = hashes[entry] & mask;
+                while (table[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = entry;
+            }
+        }
+
+        private boolean equals(int entry, char[] chars, int offset, int length) {
+            if (lengths[entry] != length) {
+                return false;
+            }
+            int base = offsets[entry];
+            for (int i = 0; i < length; i++) {
+                if (arena[base + i] != chars[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(char[] chars, int offset, int length) {
+            int h = 0;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + chars[offset + i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static int[] newTable(int capacity) {
+            int[] table = new int[capacity];
+            Arrays.fill(table, -1);
+            return table;
+        }
+    }
+
+    // ---------------------------------------------------------------- 结果
+
+    /**
+     * 统计结果
+     */
+    public static final class Result {
+        private final Counts counts;
+        private final boolean lowerCase;
+
+        private Result(Counts counts, boolean lowerCase) {
+            this.counts = counts;
+            this.lowerCase = lowerCase;
+        }
+
+        /**
+         * @return 字符（码点）总数，包括空白
+         */
+        public long getTotalChars() {
+            return counts.totalChars;
+        }
+
+        public long getTotalTokens() {
+            return counts.totalTokens;
+        }
+
+        public int getDistinctTokens() {
+            return counts.tokens.size();
+        }
+
+        /**
+         * @param token 统计时转为小写（默认）时，查找前同样转为小写
+         */
+        public long tokenCount(String token) {
+            return counts.tokens.get(lowerCase ? toLowerCase(token) : token);
+        }
+
+        // 与分词时一致，逐个码点转为小写；String.toLowerCase()与语言环境有关，个别字符还会变成多个字符
+        private static String toLowerCase(String token) {
+            StringBuilder lower = new StringBuilder(token.length());
+            for (int i = 0; i < token.length(); ) {
+                int codePoint = token.codePointAt(i);
+                lower.appendCodePoint(Character.toLowerCase(codePoint));
+                i += Character.charCount(codePoint);
+            }
+            return lower.toString();
+        }
+
+        public long charCount(int codePoint) {
+            if (codePoint < 0 || codePoint > Character.MAX_CODE_POINT) {
+                return 0;
+            }
+            return codePoint < counts.bmp.length ? counts.bmp[codePoint]
+                    : counts.supplementary.get(new String(Character.toChars(codePoint)));
+        }
+
+        /**
+         * @return 出现次数最多的n个单词，按次数从多到少排列
+         */
+        public List<Map.Entry<String, Long>> topTokens(int n) {
+            return top(counts.tokens, n);
+        }
+
+        /**
+         * @return 出现次数最多的n个字符，按次数从多到少排列
+         */
+        public List<Map.Entry<String, Long>> topChars(int n) {
+            TokenCounter chars = new TokenCounter();
+            char[] c = new char[1];
+            for (int i = 0; i < counts.bmp.length; i++) {
+                if (counts.bmp[i] > 0) {
+                    c[0] = (char) i;
+                    chars.add(c, 0, 1, counts.bmp[i]);
+                }
+            }
+            chars.merge(counts.supplementary);
+            return top(chars, n);
+        }
+
+        // 用大小为n的小顶堆选出前n个，只为选中的条目创建String
+        private static List<Map.Entry<String, Long>> top(TokenCounter counter, int n) {
+            if (n <= 0) {
+                return Collections.emptyList();
+            }
+            PriorityQueue<Integer> heap = new PriorityQueue<>(n, (a, b) -> Long.compare(counter.count(a), counter.count(b)));
+            for (int entry = 0; entry < counter.size(); entry++) {
+                if (heap.size() < n) {
+                    heap.add(entry);
+                } else if (counter.count(entry) > counter.count(heap.peek())) {
+                    heap.poll();
+                    heap.add(entry);
+                }
+            }
+            List<Map.Entry<String, Long>> result = new ArrayList<>(heap.size());
+            while (!heap.isEmpty()) {
+                int entry = heap.poll();
+                result.add(new AbstractMap.SimpleImmutableEntry<>(counter.key(entry), counter.count(entry)));
+            }
+            Collections.reverse(result);
+            return result;
+        }
+    }
+}
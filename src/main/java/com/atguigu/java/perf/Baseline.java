@@ -0,0 +1,206 @@
+package com.atguigu.java.perf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 性能基线：每个操作一组测量结果，以JSON保存
+ * <pre>
+ * {
+ *   "io.copyFile": {"opsPerSecond": 12.5, "p99Micros": 90210.3, "allocatedBytesPerOp": 1288.0},
+ *   ...
+ * }
+ * </pre>
+ * 基线与机器相关，不提交到仓库；指定--update-baseline时生成，文件不存在时PerfSuite失败
+ *
+ * @author xiaohua
+ * @create 2021-05-16 9:50
+ */
+public class Baseline {
+
+    private static final String OPS_PER_SECOND = "opsPerSecond";
+    private static final String P99_MICROS = "p99Micros";
+    private static final String ALLOCATED_BYTES_PER_OP = "allocatedBytesPerOp";
+
+    // 分配的字节数允许的绝对误差（测量本身的开销、类加载等）
+    private static final double ALLOCATION_SLACK = 256;
+
+    private final Map<String, Benchmark.Result> results = new LinkedHashMap<>();
+
+    public Baseline() {
+    }
+
+    public Baseline(Collection<Benchmark.Result> results) {
+        for (Benchmark.Result result : results) {
+            this.results.put(result.getName(), result);
+        }
+    }
+
+    public Benchmark.Result get(String name) {
+        return results.get(name);
+    }
+
+    /**
+     * 与基线比较，返回超出容差的退化说明；基线中没有的操作不比较
+     *
+     * @param tolerance 允许的相对偏差，例如0.5表示吞吐量可以下降50%，p99与分配的字节数可以上升50%
+     */
+    public List<String> compare(Collection<Benchmark.Result> current, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        for (Benchmark.Result now : current) {
+            Benchmark.Result base = results.get(now.getName());
+            if (base == null) {
+                continue;
+            }
+            if (now.getOpsPerSecond() < base.getOpsPerSecond() * (1 - tolerance)) {
+                regressions.add(String.format("%s 吞吐量下降：%.1f -> %.1f ops/s",
+                        now.getName(), base.getOpsPerSecond(), now.getOpsPerSecond()));
+            }
+            if (now.getP99Micros() > base.getP99Micros() * (1 + tolerance)) {
+                regressions.add(String.format("%s p99延迟上升：%.1f -> %.1f µs",
+                        now.getName(), base.getP99Micros(), now.getP99Micros()));
+            }
+            if (now.getAllocatedBytesPerOp() > base.getAllocatedBytesPerOp() * (1 + tolerance) + ALLOCATION_SLACK) {
+                regressions.add(String.format("%s 内存分配增加：%.0f -> %.0f B/op",
+                        now.getName(), base.getAllocatedBytesPerOp(), now.getAllocatedBytesPerOp()));
+            }
+        }
+        return regressions;
+    }
+
+    public void write(Path path) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        int i = 0;
+        for (Benchmark.Result result : results.values()) {
+            json.append("  ").append(quote(result.getName())).append(": {")
+                    .append(quote(OPS_PER_SECOND)).append(": ").append(result.getOpsPerSecond()).append(", ")
+                    .append(quote(P99_MICROS)).append(": ").append(result.getP99Micros()).append(", ")
+                    .append(quote(ALLOCATED_BYTES_PER_OP)).append(": ").append(result.getAllocatedBytesPerOp())
+                    .append('}').append(++i < results.size() ? ",\n" : "\n");
+        }
+        json.append("}\n");
+        Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static Baseline read(Path path) throws IOException {
+        String json = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        Parser parser = new Parser(json, path);
+        Baseline baseline = new Baseline();
+        parser.expect('{');
+        if (!parser.skip('}')) {
+            do {
+                String name = parser.string();
+                parser.expect(':');
+                Map<String, Double> fields = new LinkedHashMap<>();
+                parser.expect('{');
+                if (!parser.skip('}')) {
+                    do {
+                        String field = parser.string();
+                        parser.expect(':');
+                        fields.put(field, parser.number());
+                    } while (parser.skip(','));
+                    parser.expect('}');
+                }
+                baseline.results.put(name, new Benchmark.Result(name, parser.field(fields, OPS_PER_SECOND),
+                        parser.field(fields, P99_MICROS), parser.field(fields, ALLOCATED_BYTES_PER_OP)));
+            } while (parser.skip(','));
+            parser.expect('}');
+        }
+        parser.end();
+        return baseline;
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /**
+     * 只支持基线文件用到的JSON子集：对象、字符串、数字
+     */
+    private static final class Parser {
+        private final String json;
+        private final Path path;
+        private int pos;
+
+        Parser(String json, Path path) {
+            this.json = json;
+            this.path = path;
+        }
+
+        void expect(char c) throws IOException {
+            if (!skip(c)) {
+                throw error("应为'" + c + "'");
+            }
+        }
+
+        boolean skip(char c) {
+            whitespace();
+            if (pos < json.length() && json.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        String string() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < json.length()) {
+                char c = json.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c == '\\' && pos < json.length()) {
+                    c = json.charAt(pos++);
+                }
+                sb.append(c);
+            }
+            throw error("字符串没有结束");
+        }
+
+        double number() throws IOException {
+            whitespace();
+            int start = pos;
+            while (pos < json.length() && "+-.0123456789eE".indexOf(json.charAt(pos)) >= 0) {
+                pos++;
+            }
+            try {
+                return Double.parseDouble(json.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("应为数字");
+            }
+        }
+
+        double field(Map<String, Double> fields, String name) throws IOException {
+            Double value = fields.get(name);
+            if (value == null) {
+                throw error("缺少字段" + name);
+            }
+            return value;
+        }
+
+        void end() throws IOException {
+            whitespace();
+            if (pos < json.length()) {
+                throw error("多余的内容");
+            }
+        }
+
+        private void whitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IOException error(String message) {
+            return new IOException("基线文件格式错误（" + path + "，位置" + pos + "）：" + message);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.atguigu.java.perf;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 测量一个操作的吞吐量、p99延迟与每次操作分配的字节数
+ * <pre>
+ * 1. 先预热warmup次（让JIT编译热点代码），再正式执行iterations次，每次单独计时
+ * 2. 分配的字节数来自com.sun.management.ThreadMXBean.getThreadAllocatedBytes，
+ *    统计测量结束时所有存活的线程；测量期间结束的线程无法统计，
+ *    因此被测操作中的后台线程应来自测量前后一直存活的线程池（见PerfSuite），而不是每次操作临时创建
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-16 9:30
+ */
+public class Benchmark {
+
+    /**
+     * 被测量的操作，i为第几次执行（从0开始，预热与正式执行分别计数）
+     */
+    public interface Op {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * 一个操作的测量结果
+     */
+    public static final class Result {
+        private final String name;
+        private final double opsPerSecond;
+        private final double p99Micros;
+        private final double allocatedBytesPerOp;
+
+        public Result(String name, double opsPerSecond, double p99Micros, double allocatedBytesPerOp) {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.p99Micros = p99Micros;
+            this.allocatedBytesPerOp = allocatedBytesPerOp;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getOpsPerSecond() {
+            return opsPerSecond;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getAllocatedBytesPerOp() {
+            return allocatedBytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-32s %14.1f ops/s %14.1f µs(p99) %14.0f B/op",
+                    name, opsPerSecond, p99Micros, allocatedBytesPerOp);
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public Benchmark() {
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("当前JVM不支持统计线程分配的内存");
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    public Result measure(String name, int warmup, int iterations, Op op) throws Exception {
+        if (warmup < 0 || iterations <= 0) {
+            throw new IllegalArgumentException("warmup：" + warmup + "，iterations：" + iterations);
+        }
+        for (int i = 0; i < warmup; i++) {
+            op.run(i);
+        }
+        System.gc();
+
+        long[] samples = new long[iterations];
+        Map<Long, Long> before = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long t = System.nanoTime();
+            op.run(i);
+            samples[i] = System.nanoTime() - t;
+        }
+        long elapsed = System.nanoTime() - start;
+        Map<Long, Long> after = allocatedBytes();
+
+        long allocated = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            Long base = before.get(entry.getKey());
+            allocated += entry.getValue() - (base == null ? 0 : base);
+        }
+        Arrays.sort(samples);
+        long p99 = samples[Math.min(iterations - 1, (int) Math.ceil(iterations * 0.99) - 1)];
+
+        Result result = new Result(name, iterations * 1e9 / elapsed, p99 / 1e3, (double) allocated / iterations);
+        System.out.println(result);
+        return result;
+    }
+
+    // 线程id -> 该线程累计分配的字节数
+    private static Map<Long, Long> allocatedBytes() {
+        long[] ids = THREADS.getAllThreadIds();
+        long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+        Map<Long, Long> result = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                result.put(ids[i], bytes[i]);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,468 @@
+package com.atguigu.java.perf;
+
+import com.atguigu.java.collection.MappedHashMap;
+import com.atguigu.java.io.BufferedStreamTest;
+import com.atguigu.java.io.ExternalSorter;
+import com.atguigu.java.io.FileInputOutputStreamTest;
+import com.atguigu.java.io.WriteBehindOutputStream;
+import com.atguigu.java.nio.AsyncFile;
+import com.atguigu.java.nio.CachedFileChannel;
+import com.atguigu.java.nio.ColumnFile;
+import com.atguigu.java.nio.FileSplitter;
+import com.atguigu.java.nio.PackFile;
+import com.atguigu.java.nio.TextAnalyzer;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 性能回归测试：在生成的本地文件上测量io、nio与collection中的热点操作，并与基线比较
+ * <pre>
+ * 1. 测试文件生成在target/perf中（固定随机种子，每次内容相同）
+ * 2. 每个操作记录吞吐量、p99延迟与每次操作分配的字节数（见Benchmark）
+ * 3. 与基线比较，超出容差抛出AssertionError；基线文件不存在时同样失败，
+ *    需要用--update-baseline（系统属性perf.updateBaseline=true）显式地用本次结果生成或更新基线
+ *
+ * 运行：java com.atguigu.java.perf.PerfSuite [--update-baseline] [--baseline=文件] [--dir=目录] [--tolerance=0.5]
+ * 或者运行testPerformance()，参数用系统属性perf.updateBaseline、perf.baseline、perf.dir、perf.tolerance指定
+ * </pre>
+ *
+ * @author xiaohua
+ * @create 2021-05-16 10:30
+ */
+public class PerfSuite {
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+    private static final int SORT_FILE_SIZE = 4 * 1024 * 1024;
+    private static final int COLUMN_ROWS = 4 * 1024 * 1024;
+    private static final int PACK_ENTRIES = 10000;
+    private static final int MAP_ENTRIES = 100000;
+    private static final int RANDOM_READ_SIZE = 4096;
+    private static final long SEED = 20210516L;
+
+    private static final String[] WORDS = {"hello", "world", "java", "nio", "channel", "buffer", "stream",
+            "文件", "通道", "缓冲区", "映射", "数据", "Hello", "IO", "2021"};
+
+    private Path dir = Paths.get(System.getProperty("perf.dir", "target/perf"));
+    private Path baseline = Paths.get(System.getProperty("perf.baseline", "perf-baseline.json"));
+    private double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.5"));
+    private boolean updateBaseline = Boolean.getBoolean("perf.updateBaseline");
+
+    public PerfSuite dir(Path dir) {
+        this.dir = dir;
+        return this;
+    }
+
+    public PerfSuite baseline(Path baseline) {
+        this.baseline = baseline;
+        return this;
+    }
+
+    public PerfSuite tolerance(double tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("tolerance不能小于0：" + tolerance);
+        }
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    public PerfSuite updateBaseline(boolean updateBaseline) {
+        this.updateBaseline = updateBaseline;
+        return this;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PerfSuite suite = new PerfSuite();
+        for (String arg : args) {
+            if (arg.equals("--update-baseline")) {
+                suite.updateBaseline(true);
+            } else if (arg.startsWith("--baseline=")) {
+                suite.baseline(Paths.get(arg.substring("--baseline=".length())));
+            } else if (arg.startsWith("--dir=")) {
+                suite.dir(Paths.get(arg.substring("--dir=".length())));
+            } else if (arg.startsWith("--tolerance=")) {
+                suite.tolerance(Double.parseDouble(arg.substring("--tolerance=".length())));
+            } else {
+                System.err.println("未知参数：" + arg);
+                System.exit(2);
+            }
+        }
+        try {
+            suite.run();
+        } catch (AssertionError e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    @Test
+    public void testPerformance() throws Exception {
+        run();
+    }
+
+    /**
+     * 运行全部测量，与基线比较
+     *
+     * @throws AssertionError 有操作退化超出容差，或者没有指定updateBaseline时基线文件不存在
+     */
+    public List<Benchmark.Result> run() throws Exception {
+        // 在测量之前检查，避免白白运行全部测量
+        if (!updateBaseline && !Files.exists(baseline)) {
+            throw new AssertionError("基线文件不存在：" + baseline.toAbsolutePath()
+                    + "，用--update-baseline（或-Dperf.updateBaseline=true）生成");
+        }
+        Files.createDirectories(dir);
+        Path binary = dir.resolve("binary.dat");
+        Path text = dir.resolve("text.txt");
+        Path lines = dir.resolve("lines.txt");
+        generateBinary(binary, FILE_SIZE);
+        generateText(text, FILE_SIZE);
+        generateLines(lines, SORT_FILE_SIZE);
+
+        Benchmark bench = new Benchmark();
+        List<Benchmark.Result> results = new ArrayList<>();
+        // 后台任务在整个测量期间共用的线程，线程不在测量期间结束，分配的字节数才能被Benchmark统计到
+        ExecutorService workers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "perf-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            measureIo(bench, results, binary, text, lines, workers);
+            measureNio(bench, results, binary, text, workers);
+            measureCollection(bench, results);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (updateBaseline) {
+            new Baseline(results).write(baseline);
+            System.out.println("已写入基线：" + baseline.toAbsolutePath());
+            return results;
+        }
+        List<String> regressions = Baseline.read(baseline).compare(results, tolerance);
+        if (!regressions.isEmpty()) {
+            StringBuilder message = new StringBuilder("性能退化超出容差" + tolerance + "（基线：" + baseline + "）：");
+            for (String regression : regressions) {
+                message.append("\n  ").append(regression);
+            }
+            throw new AssertionError(message.toString());
+        }
+        System.out.println("与基线相比没有超出容差" + tolerance + "的退化");
+        return results;
+    }
+
+    // ---------------------------------------------------------------- io
+
+    private void measureIo(Benchmark bench, List<Benchmark.Result> results, Path binary, Path text, Path lines,
+                           ExecutorService workers) throws Exception {
+        String src = binary.toString();
+        String dest = dir.resolve("copy.dat").toString();
+
+        FileInputOutputStreamTest streams = new FileInputOutputStreamTest();
+        results.add(bench.measure("io.copyFile", 2, 10, i -> streams.copyFile(src, dest)));
+
+        BufferedStreamTest buffered = new BufferedStreamTest();
+        results.add(bench.measure("io.copyFileWithBuffered", 2, 10, i -> buffered.copyFileWithBuffered(src, dest)));
+
+        Path textDest = dir.resolve("copy.txt");
+        results.add(bench.measure("io.fileReaderWriterCopy", 2, 10, i -> fileReaderWriterCopy(text, textDest)));
+        results.add(bench.measure("io.bufferedReaderWriterLines", 2, 10, i -> bufferedLinesCopy(text, textDest)));
+
+        byte[] chunk = new byte[1024];
+        new Random(SEED).nextBytes(chunk);
+        results.add(bench.measure("io.writeBehindOutputStream", 2, 10, i -> {
+            try (OutputStream out = new WriteBehindOutputStream(new FileOutputStream(dest),
+                    WriteBehindOutputStream.DEFAULT_BUFFER_SIZE, WriteBehindOutputStream.DEFAULT_BUFFER_SIZE,
+                    WriteBehindOutputStream.DEFAULT_FLUSH_INTERVAL, workers)) {
+                for (int written = 0; written < FILE_SIZE; written += chunk.length) {
+                    out.write(chunk);
+                }
+            }
+        }));
+
+        ExternalSorter sorter = new ExternalSorter().memoryBudget(SORT_FILE_SIZE / 4).tempDir(dir).executor(workers);
+        Path sorted = dir.resolve("sorted.txt");
+        results.add(bench.measure("io.externalSort", 1, 5, i -> sorter.sort(lines, sorted)));
+    }
+
+    // 字符流复制文本文件，同FileReaderWriterTest.testFileReaderAndFileWriter()
+    private static void fileReaderWriterCopy(Path src, Path dest) throws IOException {
+        try (FileReader reader = new FileReader(src.toFile());
+             FileWriter writer = new FileWriter(dest.toFile())) {
+            char[] buffer = new char[5];
+            int len;
+            while ((len = reader.read(buffer)) != -1) {
+                writer.write(buffer, 0, len);
+            }
+        }
+    }
+
+    // 按行复制文本文件，同BufferedStreamTest.testBufferedReaderBufferedWriter()
+    private static void bufferedLinesCopy(Path src, Path dest) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(src.toFile()));
+             BufferedWriter bw = new BufferedWriter(new FileWriter(dest.toFile()))) {
+            String data;
+            while ((data = br.readLine()) != null) {
+                bw.write(data);
+                bw.newLine();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- nio
+
+    private void measureNio(Benchmark bench, List<Benchmark.Result> results, Path binary, Path text,
+                            ExecutorService workers) throws Exception {
+        Path dest = dir.resolve("copy.dat");
+
+        results.add(bench.measure("nio.channelCopy", 2, 10, i -> channelCopy(binary, dest)));
+        results.add(bench.measure("nio.mappedCopy", 2, 10, i -> mappedCopy(binary, dest)));
+        results.add(bench.measure("nio.transferFrom", 2, 10, i -> transferCopy(binary, dest)));
+        results.add(bench.measure("nio.scatterGatherCopy", 2, 10, i -> scatterGatherCopy(binary, dest)));
+
+        // 编码与解码1MB的中英文混合文本，编码器与解码器重复使用
+        String sample = new String(Files.readAllBytes(text), StandardCharsets.UTF_8).substring(0, 1024 * 1024);
+        CharsetEncoder encoder = Charset.forName("GBK").newEncoder();
+        CharsetDecoder decoder = Charset.forName("GBK").newDecoder();
+        results.add(bench.measure("nio.charsetEncodeDecode", 3, 20,
+                i -> decoder.decode(encoder.encode(CharBuffer.wrap(sample)))));
+
+        FileSplitter splitter = new FileSplitter().executor(workers);
+        Path parts = dir.resolve("parts");
+        Path manifest = parts.resolve(binary.getFileName() + FileSplitter.MANIFEST_SUFFIX);
+        results.add(bench.measure("nio.fileSplitJoin", 2, 10, i -> {
+            splitter.split(binary, parts, FILE_SIZE / 4);
+            splitter.join(manifest, dest);
+        }));
+
+        Path columns = dir.resolve("columns.dat");
+        Files.deleteIfExists(columns);
+        try (ColumnFile file = ColumnFile.create(columns, COLUMN_ROWS,
+                ColumnFile.column("id", ColumnFile.Type.LONG), ColumnFile.column("amount", ColumnFile.Type.DOUBLE))) {
+            ColumnFile.LongColumn id = file.longColumn("id");
+            ColumnFile.DoubleColumn amount = file.doubleColumn("amount");
+            for (int row = 0; row < COLUMN_ROWS; row++) {
+                id.set(row, row);
+                amount.set(row, row * 0.5);
+            }
+            results.add(bench.measure("nio.columnLongSum", 3, 20, i -> id.sum()));
+            results.add(bench.measure("nio.columnDoubleCount", 3, 20, i -> amount.count(v -> v > 1000)));
+            results.add(bench.measure("nio.columnLongMin", 3, 20, i -> id.min()));
+            results.add(bench.measure("nio.columnDoubleMax", 3, 20, i -> amount.max()));
+        }
+
+        long[] positions = randomPositions(FILE_SIZE - RANDOM_READ_SIZE, 100000);
+        ByteBuffer dst = ByteBuffer.allocateDirect(RANDOM_READ_SIZE);
+        try (CachedFileChannel channel = CachedFileChannel.open(binary)) {
+            results.add(bench.measure("nio.cachedRandomRead", 100000, 100000, i -> {
+                dst.clear();
+                channel.read(dst, positions[i]);
+            }));
+        }
+
+        long[] batch = Arrays.copyOf(positions, 10000);
+        int[] lengths = new int[batch.length];
+        Arrays.fill(lengths, RANDOM_READ_SIZE);
+        try (AsyncFile file = new AsyncFile(binary)) {
+            results.add(bench.measure("nio.asyncReadAll", 3, 20, i -> file.readAll(batch, lengths).get()));
+        }
+
+        Path pack = dir.resolve("perf");
+        PackFile.delete(pack);
+        try (PackFile file = new PackFile(pack)) {
+            Random random = new Random(SEED);
+            Map<String, ByteBuffer> entries = new LinkedHashMap<>();
+            for (int n = 0; n < PACK_ENTRIES; n++) {
+                byte[] data = new byte[100 + random.nextInt(2000)];
+                random.nextBytes(data);
+                entries.put("file" + n, ByteBuffer.wrap(data));
+            }
+            file.appendAll(entries);
+            file.flushIndex();
+            String[] names = entries.keySet().toArray(new String[0]);
+            int[] order = randomIndexes(PACK_ENTRIES, 100000);
+            results.add(bench.measure("nio.packFileGet", 100000, 100000, i -> file.get(names[order[i]])));
+
+            // 每次追加一个新文件，名称不重复（预热与正式执行的i分别从0开始）
+            byte[] data = new byte[1024];
+            random.nextBytes(data);
+            int[] next = {0};
+            results.add(bench.measure("nio.packFileAppend", 20000, 20000,
+                    i -> file.append("append" + next[0]++, data)));
+        }
+
+        TextAnalyzer analyzer = new TextAnalyzer(StandardCharsets.UTF_8).chunkSize(1024 * 1024);
+        results.add(bench.measure("nio.textAnalyze", 2, 10, i -> analyzer.analyze(text)));
+    }
+
+    // 利用通道完成文件的复制（非直接缓冲区），同ChannelTest.test()
+    private static void channelCopy(Path src, Path dest) throws IOException {
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                out.write(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    // 内存映射文件完成复制，同ChannelTest.test2()
+    private static void mappedCopy(Path src, Path dest) throws IOException {
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.READ,
+                     StandardOpenOption.CREATE)) {
+            MappedByteBuffer inMapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            MappedByteBuffer outMapped = out.map(FileChannel.MapMode.READ_WRITE, 0, in.size());
+            byte[] bytes = new byte[inMapped.limit()];
+            inMapped.get(bytes);
+            outMapped.put(bytes);
+        }
+    }
+
+    // 通道之间的数据传输，同ChannelTest.test3()
+    private static void transferCopy(Path src, Path dest) throws IOException {
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.READ,
+                     StandardOpenOption.CREATE)) {
+            out.transferFrom(in, 0, in.size());
+        }
+    }
+
+    // 分散读取与聚集写入，同ChannelTest.test4()，循环到文件末尾
+    private static void scatterGatherCopy(Path src, Path dest) throws IOException {
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer[] bufs = {ByteBuffer.allocate(100), ByteBuffer.allocate(1024)};
+            while (in.read(bufs) != -1) {
+                for (ByteBuffer buffer : bufs) {
+                    buffer.flip();
+                }
+                while (bufs[0].hasRemaining() || bufs[1].hasRemaining()) {
+                    out.write(bufs);
+                }
+                for (ByteBuffer buffer : bufs) {
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- collection
+
+    private void measureCollection(Benchmark bench, List<Benchmark.Result> results) throws Exception {
+        Path path = dir.resolve("map.dat");
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(dir.resolve("map.dat.compact"));
+        byte[] value = new byte[64];
+        new Random(SEED).nextBytes(value);
+        try (MappedHashMap map = new MappedHashMap(path, 16, 16384)) {
+            for (long key = 0; key < MAP_ENTRIES; key++) {
+                map.put(key, value);
+            }
+            int[] keys = randomIndexes(MAP_ENTRIES, 200000);
+            results.add(bench.measure("collection.mappedHashMapGet", 200000, 200000, i -> map.get(keys[i])));
+            results.add(bench.measure("collection.mappedHashMapPut", 100000, 100000, i -> map.put(keys[i], value)));
+
+            // 依次删除不同的键（预热与正式执行的i分别从0开始）
+            long[] next = {0};
+            results.add(bench.measure("collection.mappedHashMapRemove", 20000, 20000, i -> map.remove(next[0]++)));
+
+            // 第一次（预热）回收上面的覆盖与删除留下的无效记录，之后每次重写全部有效记录
+            results.add(bench.measure("collection.mappedHashMapCompact", 1, 5, i -> map.compact()));
+        }
+    }
+
+    // ---------------------------------------------------------------- 测试文件
+
+    private static void generateBinary(Path path, int size) throws IOException {
+        if (Files.exists(path) && Files.size(path) == size) {
+            return;
+        }
+        byte[] bytes = new byte[size];
+        new Random(SEED).nextBytes(bytes);
+        Files.write(path, bytes);
+    }
+
+    // 中英文混合的文本，每行若干个单词
+    private static void generateText(Path path, int size) throws IOException {
+        if (Files.exists(path)) {
+            return;
+        }
+        Random random = new Random(SEED);
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (long written = 0; written < size; ) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                writer.write(word);
+                writer.write(random.nextInt(12) == 0 ? '\n' : ' ');
+                written += word.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+    }
+
+    // 随机的ASCII行，用于外部排序
+    private static void generateLines(Path path, int size) throws IOException {
+        if (Files.exists(path)) {
+            return;
+        }
+        Random random = new Random(SEED);
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (long written = 0; written < size; ) {
+                int length = 10 + random.nextInt(90);
+                for (int i = 0; i < length; i++) {
+                    writer.write('a' + random.nextInt(26));
+                }
+                writer.write('\n');
+                written += length + 1;
+            }
+        }
+    }
+
+    private static long[] randomPositions(long bound, int count) {
+        Random random = new Random(SEED);
+        long[] positions = new long[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = (long) (random.nextDouble() * bound);
+        }
+        return positions;
+    }
+
+    private static int[] randomIndexes(int bound, int count) {
+        Random random = new Random(SEED);
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = random.nextInt(bound);
+        }
+        return indexes;
+    }
+}